@@ -0,0 +1,315 @@
+package de.timmyrs.suprdiscordbot;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Maps snowflake IDs to values without boxing the keys, using open addressing with linear probing.
+ * Reads are optimistic and only take the lock if they overlap with a write, so lookups from scripts don't block the gateway.
+ * The key 0 is reserved, as it is never a valid snowflake.
+ *
+ * @param <V> Type of the values
+ */
+public class LongMap<V>
+{
+	private final StampedLock lock = new StampedLock();
+	private long[] keys;
+	private Object[] values;
+	private volatile int size;
+
+	public LongMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * @param capacity Number of entries to be held before growing
+	 */
+	public LongMap(int capacity)
+	{
+		int length = 16;
+		while(length * 3 / 4 < capacity)
+		{
+			length <<= 1;
+		}
+		keys = new long[length];
+		values = new Object[length];
+	}
+
+	/**
+	 * @param key Snowflake ID
+	 * @return The value with the given ID or null if there is none.
+	 */
+	public V get(long key)
+	{
+		if(key == 0)
+		{
+			return null;
+		}
+		long stamp = lock.tryOptimisticRead();
+		if(stamp != 0)
+		{
+			final V value = find(keys, values, key);
+			if(lock.validate(stamp))
+			{
+				return value;
+			}
+		}
+		stamp = lock.readLock();
+		try
+		{
+			return find(keys, values, key);
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param key   Snowflake ID
+	 * @param value Value to be stored
+	 * @return The previous value with the given ID or null if there was none.
+	 */
+	public V put(long key, V value)
+	{
+		if(key == 0)
+		{
+			throw new IllegalArgumentException("0 is not a valid snowflake");
+		}
+		final long stamp = lock.writeLock();
+		try
+		{
+			return store(key, value, true);
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param key   Snowflake ID
+	 * @param value Value to be stored if there is none with the given ID
+	 * @return The value with the given ID, which is the given value if there was none.
+	 */
+	public V putIfAbsent(long key, V value)
+	{
+		if(key == 0)
+		{
+			return value;
+		}
+		final V known = get(key);
+		if(known != null)
+		{
+			return known;
+		}
+		final long stamp = lock.writeLock();
+		try
+		{
+			final V previous = store(key, value, false);
+			return previous == null ? value : previous;
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param key Snowflake ID
+	 * @return The removed value or null if there was none.
+	 */
+	public V remove(long key)
+	{
+		if(key == 0)
+		{
+			return null;
+		}
+		final long stamp = lock.writeLock();
+		try
+		{
+			return delete(key);
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the entry with the given ID, if it still has the given value.
+	 *
+	 * @param key   Snowflake ID
+	 * @param value Expected value
+	 */
+	public void remove(long key, V value)
+	{
+		if(key == 0)
+		{
+			return;
+		}
+		final long stamp = lock.writeLock();
+		try
+		{
+			if(find(keys, values, key) == value)
+			{
+				delete(key);
+			}
+		}
+		finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return A snapshot of all values.
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<V> values()
+	{
+		final long stamp = lock.readLock();
+		try
+		{
+			final ArrayList<V> list = new ArrayList<>(size);
+			for(int i = 0; i < keys.length; i++)
+			{
+				if(keys[i] != 0)
+				{
+					list.add((V) values[i]);
+				}
+			}
+			return list;
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private V store(long key, V value, boolean replace)
+	{
+		int i = indexOf(keys, key);
+		if(keys[i] == key)
+		{
+			final V previous = (V) values[i];
+			if(replace)
+			{
+				values[i] = value;
+			}
+			return previous;
+		}
+		if((size + 1) > keys.length * 3 / 4)
+		{
+			grow();
+			i = indexOf(keys, key);
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V delete(long key)
+	{
+		int i = indexOf(keys, key);
+		if(keys[i] != key)
+		{
+			return null;
+		}
+		final V previous = (V) values[i];
+		final int mask = keys.length - 1;
+		// Shift the following entries of the probe sequence back, so lookups don't stop at the gap.
+		int j = i;
+		do
+		{
+			j = (j + 1) & mask;
+			if(keys[j] == 0)
+			{
+				break;
+			}
+			final int home = hash(keys[j]) & mask;
+			if(((j - home) & mask) >= ((j - i) & mask))
+			{
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		while(true);
+		keys[i] = 0;
+		values[i] = null;
+		size--;
+		return previous;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V find(long[] keys, Object[] values, long key)
+	{
+		if(keys.length != values.length)
+		{
+			return null;
+		}
+		final int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for(int probes = 0; probes < keys.length; probes++)
+		{
+			final long k = keys[i];
+			if(k == key)
+			{
+				return (V) values[i];
+			}
+			if(k == 0)
+			{
+				return null;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	private static int indexOf(long[] keys, long key)
+	{
+		final int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while(keys[i] != 0 && keys[i] != key)
+		{
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void grow()
+	{
+		final long[] oldKeys = keys;
+		final Object[] oldValues = values;
+		final long[] newKeys = new long[oldKeys.length << 1];
+		final Object[] newValues = new Object[newKeys.length];
+		for(int i = 0; i < oldKeys.length; i++)
+		{
+			if(oldKeys[i] != 0)
+			{
+				final int j = indexOf(newKeys, oldKeys[i]);
+				newKeys[j] = oldKeys[i];
+				newValues[j] = oldValues[i];
+			}
+		}
+		values = newValues;
+		keys = newKeys;
+	}
+
+	private static int hash(long key)
+	{
+		// The low bits of a snowflake are a per-process counter, so mix in the timestamp bits.
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+}
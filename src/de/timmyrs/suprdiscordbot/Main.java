@@ -1,6 +1,7 @@
 package de.timmyrs.suprdiscordbot;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonParser;
 import com.sun.istack.internal.NotNull;
 import de.timmyrs.suprdiscordbot.apis.ConsoleAPI;
@@ -8,8 +9,11 @@ import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
 import de.timmyrs.suprdiscordbot.apis.InternetAPI;
 import de.timmyrs.suprdiscordbot.apis.PermissionAPI;
 import de.timmyrs.suprdiscordbot.scripts.ScriptManager;
-import de.timmyrs.suprdiscordbot.websocket.WebSocketEndpoint;
-import de.timmyrs.suprdiscordbot.websocket.WebSocketHeart;
+import de.timmyrs.suprdiscordbot.structures.SnowflakeAdapter;
+import de.timmyrs.suprdiscordbot.websocket.FileShardCoordinator;
+import de.timmyrs.suprdiscordbot.websocket.FrameReplayer;
+import de.timmyrs.suprdiscordbot.websocket.LocalShardCoordinator;
+import de.timmyrs.suprdiscordbot.websocket.ShardManager;
 
 import java.io.File;
 import java.io.IOException;
@@ -28,6 +32,26 @@ import java.io.IOException;
  * stops the Script Watcher from checking for new or updated scripts.
  * This is recommended for a <i>production environment</i>, as the watcher reads on your hard drive quite often.
  * </li>
+ * <li>
+ * <strong>--shards FIRST-LAST --total TOTAL</strong>
+ * runs only the given range of shards, e.g. <code>--shards 0-3 --total 16</code>.
+ * Processes on the same machine coordinate through the <code>shards</code> directory, so a shard is never run twice and IDENTIFYs are spread out.
+ * Without this argument, all shards (the <code>shards</code> entry of the <code>config.json</code>, 1 by default) are run by this process.
+ * </li>
+ * <li>
+ * <strong>--record FILE</strong>
+ * appends every frame received from the gateway to the given file.
+ * </li>
+ * <li>
+ * <strong>--replay FILE</strong>
+ * feeds a recording through the bot instead of connecting to the gateway and reports the throughput once done.
+ * The replay runs offline: no REST requests are sent and no scripts are loaded.
+ * Add <strong>--replay-fast</strong> to replay as fast as possible instead of at the recorded speed.
+ * </li>
+ * <li>
+ * <strong>--zlib-stream</strong>
+ * enables zlib-stream transport compression for the gateway connection, which greatly reduces its bandwidth.
+ * </li>
  * </ul>
  *
  * @author timmyRS
@@ -45,6 +69,7 @@ public class Main
 	private final static File confFile = new File("config.json");
 	public static boolean debug = false;
 	public static boolean liveUpdateScripts = false;
+	public static boolean zlibStream = false;
 	public static Configuration configuration;
 	public static ScriptManager scriptManager;
 	public static ConsoleAPI consoleAPI;
@@ -54,14 +79,20 @@ public class Main
 	public static boolean ready = false;
 	public static Gson gson;
 	public static JsonParser jsonParser;
-	public static volatile WebSocketEndpoint webSocketEndpoint;
+	public static ShardManager shardManager;
 
 	public static void main(String[] args)
 	{
 		Main.log("Main", "SuprDiscordBot Version " + version);
 		Main.log("Main", "https://github.com/timmyrs/SuprDiscordBot");
-		for(String arg : args)
+		String shardRange = null;
+		int shardTotal = 0;
+		String recordFile = null;
+		String replayFile = null;
+		boolean replayFast = false;
+		for(int i = 0; i < args.length; i++)
 		{
+			final String arg = args[i];
 			switch(arg)
 			{
 				case "--debug":
@@ -70,6 +101,36 @@ public class Main
 				case "--live-update-scripts":
 					Main.liveUpdateScripts = true;
 					break;
+				case "--zlib-stream":
+					Main.zlibStream = true;
+					break;
+				case "--shards":
+					if(i + 1 < args.length)
+					{
+						shardRange = args[++i];
+					}
+					break;
+				case "--total":
+					if(i + 1 < args.length)
+					{
+						shardTotal = Integer.valueOf(args[++i]);
+					}
+					break;
+				case "--record":
+					if(i + 1 < args.length)
+					{
+						recordFile = args[++i];
+					}
+					break;
+				case "--replay":
+					if(i + 1 < args.length)
+					{
+						replayFile = args[++i];
+					}
+					break;
+				case "--replay-fast":
+					replayFast = true;
+					break;
 				default:
 					Main.log("Main", "Unknown Argument: " + arg);
 					break;
@@ -79,14 +140,70 @@ public class Main
 		Main.configuration = new Configuration(confFile);
 		if(Main.configuration.has("botToken"))
 		{
-			Main.gson = new Gson();
+			Main.gson = new GsonBuilder().registerTypeAdapter(long.class, new SnowflakeAdapter()).registerTypeAdapter(Long.class, new SnowflakeAdapter()).create();
 			Main.scriptManager = new ScriptManager();
 			Main.consoleAPI = new ConsoleAPI();
 			Main.discordAPI = new DiscordAPI();
 			Main.internetAPI = new InternetAPI();
 			Main.permisisonAPI = new PermissionAPI();
-			new WebSocketHeart();
-			DiscordAPI.getWebSocket();
+			final int identifyConcurrency = Main.configuration.getInt("identifyConcurrency");
+			if(shardRange == null)
+			{
+				int total = Math.max(Main.configuration.getInt("shards"), 1);
+				if(replayFile != null)
+				{
+					try
+					{
+						total = FrameReplayer.totalOf(new File(replayFile));
+					}
+					catch(IOException e)
+					{
+						e.printStackTrace();
+						return;
+					}
+				}
+				final int[] shards = new int[total];
+				for(int i = 0; i < total; i++)
+				{
+					shards[i] = i;
+				}
+				Main.shardManager = new ShardManager(new LocalShardCoordinator(identifyConcurrency), total, shards);
+			}
+			else
+			{
+				if(shardTotal < 1)
+				{
+					Main.log("Main", "--shards requires --total.");
+					return;
+				}
+				final String[] range = shardRange.split("-");
+				final int first = Integer.valueOf(range[0]);
+				final int last = Math.min(Integer.valueOf(range[range.length - 1]), shardTotal - 1);
+				final int[] shards = new int[Math.max(last - first + 1, 0)];
+				for(int i = 0; i < shards.length; i++)
+				{
+					shards[i] = first + i;
+				}
+				Main.shardManager = new ShardManager(new FileShardCoordinator(new File("shards"), identifyConcurrency), shardTotal, shards);
+			}
+			try
+			{
+				if(replayFile != null)
+				{
+					Main.shardManager.replay(new File(replayFile), replayFast);
+					System.exit(0);
+				}
+				if(recordFile != null)
+				{
+					Main.shardManager.record(new File(recordFile));
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return;
+			}
+			Main.shardManager.start();
 			try
 			{
 				if(Integer.valueOf(internetAPI.httpString("https://raw.githubusercontent.com/timmyrs/SuprDiscordBot/master/version.txt").trim()) > Main.versionInt)
@@ -1,8 +1,6 @@
 package de.timmyrs.suprdiscordbot;
 
-import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
-
-import java.util.Map.Entry;
+import de.timmyrs.suprdiscordbot.apis.RateLimiter;
 
 public class RAMCleaner extends Thread
 {
@@ -19,19 +17,7 @@ public class RAMCleaner extends Thread
 		{
 			try
 			{
-				long milis = System.currentTimeMillis();
-				int removed = 0;
-				synchronized(DiscordAPI.rate_limits)
-				{
-					for(Entry<String, Long> entry : DiscordAPI.rate_limits.entrySet())
-					{
-						if(milis > entry.getValue())
-						{
-							DiscordAPI.rate_limits.remove(entry.getKey());
-							removed++;
-						}
-					}
-				}
+				final int removed = RateLimiter.cleanUp();
 				if(removed > 0 && Main.debug)
 				{
 					Main.log("Cleaner", "Removed " + removed + " useless value(s) from RAM.");
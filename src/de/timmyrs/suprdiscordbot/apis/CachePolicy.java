@@ -0,0 +1,48 @@
+package de.timmyrs.suprdiscordbot.apis;
+
+import de.timmyrs.suprdiscordbot.Main;
+
+/**
+ * Decides which entities are cached, as set in the <code>config.json</code>:
+ * <ul>
+ * <li><code>cacheMembers</code>: <code>all</code> (default) caches every member, <code>online</code> only caches members which are online, adding them once a presence update shows them coming online and dropping them once they go offline, and <code>none</code> only caches the bot's own member.</li>
+ * <li><code>cachePresences</code>: <code>false</code> doesn't cache presences, so no <code>PRESENCE_*</code> events are fired either.</li>
+ * <li><code>cacheVoiceStates</code> and <code>cacheEmojis</code>: <code>false</code> drops the voice states and emojis of guilds.</li>
+ * <li><code>cacheDMs</code>: Maximum number of DM channels to be cached, unlimited by default.</li>
+ * <li><code>cacheMessages</code>: Number of recent messages to be cached per channel by the {@link MessageCache}, 50 by default.</li>
+ * <li><code>cacheResponses</code>: Maximum number of REST responses to be kept by the {@link ResponseCache}, 1000 by default, 0 disables it.</li>
+ * </ul>
+ * Entities which aren't cached are requested from the REST API when they are looked up.
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class CachePolicy
+{
+	public static final String members = readString("cacheMembers", "all");
+	public static final boolean presences = readBoolean("cachePresences");
+	public static final boolean voiceStates = readBoolean("cacheVoiceStates");
+	public static final boolean emojis = readBoolean("cacheEmojis");
+	public static final int dms = Main.configuration.has("cacheDMs") ? Math.max(Main.configuration.getInt("cacheDMs"), 0) : Integer.MAX_VALUE;
+	public static final int messages = Main.configuration.has("cacheMessages") ? Math.max(Main.configuration.getInt("cacheMessages"), 0) : 50;
+	public static final int responses = Main.configuration.has("cacheResponses") ? Math.max(Main.configuration.getInt("cacheResponses"), 0) : 1000;
+
+	/**
+	 * @return Whether every member is cached, so a member which isn't cached is not part of the guild.
+	 */
+	public static boolean cachesAllMembers()
+	{
+		return members.equals("all");
+	}
+
+	private static String readString(String key, String def)
+	{
+		final String value = Main.configuration.getString(key);
+		return value.equals("") ? def : value;
+	}
+
+	private static boolean readBoolean(String key)
+	{
+		return !Main.configuration.getString(key).equals("false");
+	}
+}
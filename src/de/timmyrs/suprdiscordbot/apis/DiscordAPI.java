@@ -2,21 +2,18 @@ package de.timmyrs.suprdiscordbot.apis;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.sun.istack.internal.Nullable;
 import de.timmyrs.suprdiscordbot.Main;
 import de.timmyrs.suprdiscordbot.structures.*;
 import de.timmyrs.suprdiscordbot.websocket.WebSocket;
-import org.apache.commons.io.IOUtils;
-import sun.net.www.protocol.https.HttpsURLConnectionImpl;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Field;
-import java.net.HttpURLConnection;
-import java.net.URL;
+
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Discord API ('discord')
@@ -26,10 +23,17 @@ import java.util.HashMap;
 @SuppressWarnings({"unused", "SameParameterValue", "UnusedReturnValue", "WeakerAccess"})
 public class DiscordAPI
 {
-	public static final HashMap<String, Long> rate_limits = new HashMap<>();
-	public static ArrayList<Guild> guilds = new ArrayList<>();
-	private static ArrayList<Channel> dms;
-	private static WebSocket ws;
+	private static final String rateLimited = new String();
+	private static final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+	private static final AtomicLong coalesced = new AtomicLong();
+	private static final HttpTransport transport = new HttpTransport("discordapp.com", 443, Main.configuration.getInt("httpConnectTimeout") > 0 ? Main.configuration.getInt("httpConnectTimeout") : 10000, Main.configuration.getInt("httpReadTimeout") > 0 ? Main.configuration.getInt("httpReadTimeout") : 30000);
+	private static final ExecutorService executor = Executors.newFixedThreadPool(Main.configuration.getInt("restThreads") > 0 ? Main.configuration.getInt("restThreads") : 8, r->new Thread(r, "DiscordAPI"));
+	private static boolean dmsLoaded = false;
+	/**
+	 * Whether requests are answered with null instead of being sent, e.g. while a recording is replayed.
+	 * Not accessible within script.
+	 */
+	public static volatile boolean offline = false;
 	/**
 	 * {@link User} object of this bot.
 	 */
@@ -62,6 +66,8 @@ public class DiscordAPI
 
 	/**
 	 * Not accessible within script.
+	 * A GET request which is identical to one still in flight isn't sent again, but shares its response body, which is parsed for every caller.
+	 * A GET request to a read endpoint may be answered by the {@link ResponseCache}.
 	 *
 	 * @param method    Method
 	 * @param endpoint  Endpoint
@@ -71,127 +77,201 @@ public class DiscordAPI
 	 */
 	public static Object request(String method, String endpoint, String args, Structure structure)
 	{
-		long rate_limit = 0;
-		synchronized(rate_limits)
+		if(offline)
 		{
-			if(rate_limits.containsKey(endpoint))
-			{
-				rate_limit = rate_limits.get(endpoint);
-			}
+			return null;
+		}
+		if(!method.equals("GET"))
+		{
+			return parse(send(method, endpoint, args), structure);
+		}
+		final String url = urlOf(method, endpoint, args);
+		final String cached = ResponseCache.getFresh(url);
+		if(cached != null)
+		{
+			return parse(cached, structure);
+		}
+		final CompletableFuture<String> flight = new CompletableFuture<>();
+		final CompletableFuture<String> known = inFlight.putIfAbsent(url, flight);
+		if(known != null)
+		{
+			coalesced.incrementAndGet();
+			return parse(known.join(), structure);
+		}
+		String res = null;
+		try
+		{
+			res = send(method, endpoint, args);
+		}
+		finally
+		{
+			inFlight.remove(url, flight);
+			flight.complete(res);
+		}
+		return parse(res, structure);
+	}
+
+	private static String send(String method, String endpoint, String args)
+	{
+		String res;
+		do
+		{
+			res = perform(RateLimiter.acquire(method, endpoint), method, endpoint, args);
+		}
+		while(res == rateLimited);
+		return res;
+	}
+
+	/**
+	 * Sends a request from a fixed pool of threads, once its rate limit allows it, so the calling thread isn't blocked.
+	 * Not accessible within script.
+	 *
+	 * @param method    Method
+	 * @param endpoint  Endpoint
+	 * @param args      Args
+	 * @param structure Structure
+	 * @return A future which is completed with the Object, which would have been returned by {@link DiscordAPI#request(String, String, String, Structure)}.
+	 */
+	public static CompletableFuture<Object> requestAsync(String method, String endpoint, String args, Structure structure)
+	{
+		if(offline)
+		{
+			return CompletableFuture.completedFuture(null);
+		}
+		if(!method.equals("GET"))
+		{
+			return sendAsync(method, endpoint, args).thenApply(res->parse(res, structure));
 		}
-		if(rate_limit != 0)
+		final String url = urlOf(method, endpoint, args);
+		final String cached = ResponseCache.getFresh(url);
+		if(cached != null)
 		{
-			while(System.currentTimeMillis() < rate_limit)
+			return CompletableFuture.completedFuture(parse(cached, structure));
+		}
+		final CompletableFuture<String> flight = new CompletableFuture<>();
+		final CompletableFuture<String> known = inFlight.putIfAbsent(url, flight);
+		if(known != null)
+		{
+			coalesced.incrementAndGet();
+			return known.thenApply(res->parse(res, structure));
+		}
+		sendAsync(method, endpoint, args).whenComplete((res, e)->
+		{
+			inFlight.remove(url, flight);
+			if(e == null)
 			{
-				try
-				{
-					Thread.sleep(50);
-				}
-				catch(InterruptedException e)
-				{
-					e.printStackTrace();
-				}
+				flight.complete(res);
 			}
-			synchronized(rate_limits)
+			else
 			{
-				rate_limits.put(endpoint, System.currentTimeMillis() + 3000L);
+				flight.completeExceptionally(e);
 			}
-		}
-		HttpURLConnection con = null;
+		});
+		return flight.thenApply(res->parse(res, structure));
+	}
+
+	private static CompletableFuture<String> sendAsync(String method, String endpoint, String args)
+	{
+		return RateLimiter.acquireAsync(method, endpoint).thenApplyAsync(bucket->perform(bucket, method, endpoint, args), executor).thenCompose(res->res == rateLimited ? sendAsync(method, endpoint, args) : CompletableFuture.completedFuture(res));
+	}
+
+	/**
+	 * @return The endpoint without its leading slash, followed by the args if it is a GET request.
+	 */
+	private static String urlOf(String method, String endpoint, String args)
+	{
+		String url = (endpoint.startsWith("/") ? endpoint.substring(1) : endpoint);
 		if(method.equals("GET") && !args.equals(""))
 		{
-			endpoint += "?" + args;
+			url += "?" + args;
 		}
-		try
+		return url;
+	}
+
+	/**
+	 * @return The response body, null if the request failed, or {@link DiscordAPI#rateLimited} if the request has to be repeated.
+	 */
+	private static String perform(RateLimiter.Bucket bucket, String method, String endpoint, String args)
+	{
+		final String url = urlOf(method, endpoint, args);
+		final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+		headers.put("Authorization", "Bot " + Main.configuration.getString("botToken"));
+		headers.put("User-Agent", "DiscordBot (https://discord.gg, 1.0)");
+		byte[] body = null;
+		ResponseCache.Request cacheRequest = null;
+		if(method.equals("GET"))
 		{
-			con = (HttpURLConnection) new URL("https://discordapp.com/api/v6/" + endpoint).openConnection();
-			Field delegate = HttpsURLConnectionImpl.class.getDeclaredField("delegate");
-			delegate.setAccessible(true);
-			Object target = delegate.get(con);
-			Field field = HttpURLConnection.class.getDeclaredField("method");
-			field.setAccessible(true);
-			field.set(target, method);
+			cacheRequest = ResponseCache.begin(url, headers);
 		}
-		catch(Exception e)
+		else if(args != null)
 		{
-			e.printStackTrace();
+			headers.put("Content-Type", "application/json");
+			body = args.getBytes(StandardCharsets.UTF_8);
 		}
-		if(con == null)
+		final HttpTransport.Response response;
+		try
 		{
-			return null;
+			response = transport.request(method, "/api/v6/" + url, headers, body);
 		}
-		con.setRequestProperty("Authorization", "Bot " + Main.configuration.getString("botToken"));
-		con.setRequestProperty("User-Agent", "DiscordBot (https://discord.gg, 1.0)");
-		if(!method.equals("GET") && args != null)
+		catch(Exception e)
 		{
-			con.setDoOutput(true);
-			con.setRequestProperty("Content-Type", "application/json");
-			try
-			{
-				con.getOutputStream().write(args.getBytes());
-			}
-			catch(IOException e)
+			if(cacheRequest != null)
 			{
-				e.printStackTrace();
+				ResponseCache.abandon(cacheRequest);
 			}
+			RateLimiter.update(bucket, null);
+			e.printStackTrace();
+			return null;
 		}
-		else
+		if(RateLimiter.update(bucket, response))
 		{
-			try
+			if(cacheRequest != null)
 			{
-				con.connect();
+				ResponseCache.abandon(cacheRequest);
 			}
-			catch(IOException e)
+			if(Main.debug)
 			{
-				e.printStackTrace();
+				Main.log("Discord", "Rate limited in response to " + method + " " + url + ", retrying");
 			}
+			return rateLimited;
 		}
-		synchronized(rate_limits)
+		final String res;
+		if(cacheRequest != null)
 		{
-			rate_limits.put(endpoint, System.currentTimeMillis() + 500L);
+			res = ResponseCache.put(cacheRequest, response);
 		}
-		InputStream is;
-		try
+		else
 		{
-			is = con.getInputStream();
+			res = response.getBody();
+			if(response.status < 400)
+			{
+				ResponseCache.invalidateWrite(url);
+			}
 		}
-		catch(Exception e)
+		if(response.status >= 400)
 		{
 			try
 			{
-				is = con.getErrorStream();
-				String res = IOUtils.toString(is, "UTF-8");
 				if(res.startsWith("{"))
 				{
 					JsonObject json = Main.jsonParser.parse(res).getAsJsonObject();
 					if(Main.debug)
 					{
-						throw new RuntimeException(con.getResponseCode() + " - " + json.toString());
+						throw new RuntimeException(response.status + " - " + json.toString());
 					}
 					else
 					{
-						Main.log("Discord", con.getResponseCode() + " " + json.toString() + " in response to " + method + " " + endpoint);
-					}
-					if(json.has("message"))
-					{
-						if(json.get("message").getAsString().equals("You are being rate limited."))
-						{
-							synchronized(rate_limits)
-							{
-								rate_limits.put(endpoint, System.currentTimeMillis() + (json.get("retry_after").getAsLong()));
-							}
-							DiscordAPI.request(method, endpoint, args, structure);
-						}
+						Main.log("Discord", response.status + " " + json.toString() + " in response to " + method + " " + url);
 					}
 					return null;
 				}
 				if(Main.debug)
 				{
-					throw new RuntimeException(con.getResponseCode() + " - " + res);
+					throw new RuntimeException(response.status + " - " + res);
 				}
 				else
 				{
-					Main.log("Discord", con.getResponseCode() + " " + res + " in response to " + method + " " + endpoint);
+					Main.log("Discord", response.status + " " + res + " in response to " + method + " " + url);
 				}
 			}
 			catch(Exception ex)
@@ -200,10 +280,14 @@ public class DiscordAPI
 			}
 			return null;
 		}
+		return res;
+	}
+
+	private static Object parse(String res, Structure structure)
+	{
 		try
 		{
-			String res = IOUtils.toString(is, "UTF-8");
-			if(structure == null)
+			if(res == null || structure == null)
 			{
 				return res;
 			}
@@ -229,36 +313,6 @@ public class DiscordAPI
 		return null;
 	}
 
-	/**
-	 * Not accessible within script.
-	 */
-	public static void getWebSocket()
-	{
-		if(ws == null)
-		{
-			if(!Main.configuration.has("gateway"))
-			{
-				JsonObject json = Main.jsonParser.parse(Main.discordAPI.request("/gateway").toString()).getAsJsonObject();
-				Main.configuration.set("gateway", json.get("url").getAsString());
-			}
-			ws = new WebSocket(Main.configuration.getString("gateway") + "/?v=6&encoding=json");
-		}
-	}
-
-	/**
-	 * Not accessible within script.
-	 *
-	 * @param reason Close reason
-	 */
-	public static void closeWebSocket(@Nullable String reason)
-	{
-		if(ws != null)
-		{
-			ws.close(reason);
-			ws = null;
-		}
-	}
-
 	/**
 	 * Send a manual request to the Discord API.
 	 *
@@ -295,8 +349,41 @@ public class DiscordAPI
 		return request("GET", endpoint, "", null);
 	}
 
+	/**
+	 * Send a manual request to the Discord API without waiting for the response.
+	 * <p>
+	 * <code>
+	 * discord.requestAsync("GET", "/gateway").thenAccept(function(res)<br>
+	 * {<br>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;console.log(res);<br>
+	 * });
+	 * </code>
+	 *
+	 * @param method   HTTP Method (GET, POST, PATCH, etc.)
+	 * @param endpoint The API endpoint (e.g. /users/_ID_)
+	 * @return A future which is completed with the response.
+	 */
+	public CompletableFuture<Object> requestAsync(String method, String endpoint)
+	{
+		return requestAsync(method, endpoint, "", null);
+	}
+
+	/**
+	 * Send a manual request to the Discord API without waiting for the response.
+	 *
+	 * @param method   HTTP Method (GET, POST, PATCH, etc.)
+	 * @param endpoint The API endpoint (e.g. /users/_ID_)
+	 * @param args     HTTP Arguments
+	 * @return A future which is completed with the response.
+	 */
+	public CompletableFuture<Object> requestAsync(String method, String endpoint, String args)
+	{
+		return requestAsync(method, endpoint, args, null);
+	}
+
 	/**
 	 * Sends a request through the Gateway/Websocket.
+	 * Status updates (OP 3) are sent through all shards and requests with a <code>guild_id</code> through the shard of that guild.
 	 * See https://discordapp.com/developers/docs/topics/gateway for the documentation.
 	 *
 	 * @param op OP Code
@@ -318,15 +405,7 @@ public class DiscordAPI
 		{
 			json.addProperty("d", d.toString());
 		}
-		if(ws == null)
-		{
-			WebSocket.afterConnectSend = json;
-			DiscordAPI.getWebSocket();
-		}
-		else
-		{
-			ws.send(json);
-		}
+		Main.shardManager.send(json);
 	}
 
 	/**
@@ -337,17 +416,28 @@ public class DiscordAPI
 	 */
 	public Guild getGuild(String id)
 	{
-		for(Guild g : guilds)
+		return getGuild(Structure.snowflake(id));
+	}
+
+	/**
+	 * @param id ID of the Guild
+	 * @return {@link Guild} object with the given ID or null if not found
+	 * @see DiscordAPI#getGuild(String)
+	 */
+	public Guild getGuild(long id)
+	{
+		if(id == 0)
 		{
-			if(g.id.equals(id))
-			{
-				return g;
-			}
+			return null;
 		}
-		Guild g = (Guild) request("/guilds/" + id, new Guild());
-		if(g != null)
+		Guild g = EntityRegistry.getGuild(id);
+		if(g == null)
 		{
-			guilds.add(g);
+			g = (Guild) request("/guilds/" + id, new Guild());
+			if(g != null)
+			{
+				EntityRegistry.addGuild(g);
+			}
 		}
 		return g;
 	}
@@ -361,7 +451,7 @@ public class DiscordAPI
 	 */
 	public Guild getGuildByName(String name)
 	{
-		for(Guild g : guilds)
+		for(Guild g : EntityRegistry.getGuilds())
 		{
 			if(g.name.equalsIgnoreCase(name))
 			{
@@ -380,17 +470,31 @@ public class DiscordAPI
 	 */
 	public User getUser(String id)
 	{
-		for(Channel c : getDMs())
+		return getUser(Structure.snowflake(id));
+	}
+
+	/**
+	 * @param id ID of the User
+	 * @return {@link User} object with the given ID or null if not found
+	 * @see DiscordAPI#getUser(String)
+	 */
+	public User getUser(long id)
+	{
+		if(id == 0)
 		{
-			if(c.type == 1)
-			{
-				if(c.recipients[0].id.equals(id))
-				{
-					return c.recipients[0];
-				}
-			}
+			return null;
 		}
-		return (User) request("/users/" + id, new User());
+		User u = EntityRegistry.getUser(id);
+		if(u == null)
+		{
+			loadDMs();
+			u = EntityRegistry.getUser(id);
+		}
+		if(u == null)
+		{
+			u = EntityRegistry.internUser((User) request("/users/" + id, new User()));
+		}
+		return u;
 	}
 
 	/**
@@ -401,15 +505,14 @@ public class DiscordAPI
 	 */
 	public Presence getPresence(String id)
 	{
-		for(Guild g : guilds)
+		final long userId = Structure.snowflake(id);
+		for(long guildId : EntityRegistry.getPresenceGuilds(userId))
 		{
-			for(Presence p : g.presences)
+			final Guild g = EntityRegistry.getGuild(guildId);
+			final Presence p = (g == null ? null : g.getPresence(userId));
+			if(p != null)
 			{
-				if(p.user.id.equals(id))
-				{
-					p.guild_id = null;
-					return p;
-				}
+				return p;
 			}
 		}
 		return null;
@@ -423,27 +526,33 @@ public class DiscordAPI
 	 */
 	public Channel getChannel(String id)
 	{
-		for(Guild g : guilds)
+		return getChannel(Structure.snowflake(id));
+	}
+
+	/**
+	 * @param id ID of the Channel
+	 * @return {@link Channel} object with the given ID or null if not found
+	 * @see DiscordAPI#getChannel(String)
+	 */
+	public Channel getChannel(long id)
+	{
+		if(id == 0)
 		{
-			for(Channel c : g.getChannels())
-			{
-				if(c.id.equals(id))
-				{
-					return c;
-				}
-			}
+			return null;
 		}
-		for(Channel c : getDMs())
+		Channel c = EntityRegistry.getChannel(id);
+		if(c == null)
 		{
-			if(c.id.equals(id))
-			{
-				return c;
-			}
+			loadDMs();
+			c = EntityRegistry.getChannel(id);
 		}
-		Channel c = (Channel) request("/channels/" + id, new Channel());
-		if(c.type == 1 || c.type == 3)
+		if(c == null)
 		{
-			dms.add(c);
+			c = (Channel) request("/channels/" + id, new Channel());
+			if(c != null && (c.type == 1 || c.type == 3))
+			{
+				EntityRegistry.addChannel(c);
+			}
 		}
 		return c;
 	}
@@ -453,8 +562,7 @@ public class DiscordAPI
 	 */
 	public Guild[] getGuilds()
 	{
-		Guild[] ret = new Guild[guilds.size()];
-		return guilds.toArray(ret);
+		return EntityRegistry.getGuilds().toArray(new Guild[0]);
 	}
 
 	/**
@@ -465,13 +573,38 @@ public class DiscordAPI
 	 */
 	public Channel[] getDMs()
 	{
-		if(dms == null)
+		if(CachePolicy.dms == 0)
 		{
-			dms = new ArrayList<>();
-			dms.addAll(Arrays.asList((Channel[]) request("/users/@me/channels", new Channel())));
+			return (Channel[]) request("/users/@me/channels", new Channel());
+		}
+		loadDMs();
+		return EntityRegistry.getDMs().toArray(new Channel[0]);
+	}
+
+	/**
+	 * Loads the DM channels into the {@link EntityRegistry} once, unless the {@link CachePolicy} doesn't cache any.
+	 */
+	public void loadDMs()
+	{
+		if(CachePolicy.dms == 0)
+		{
+			return;
+		}
+		synchronized(EntityRegistry.class)
+		{
+			if(!dmsLoaded)
+			{
+				final Channel[] dms = (Channel[]) request("/users/@me/channels", new Channel());
+				if(dms != null)
+				{
+					for(Channel c : dms)
+					{
+						EntityRegistry.addChannel(c);
+					}
+					dmsLoaded = true;
+				}
+			}
 		}
-		Channel[] ret = new Channel[dms.size()];
-		return dms.toArray(ret);
 	}
 
 	/**
@@ -501,4 +634,42 @@ public class DiscordAPI
 	{
 		return Main.debug;
 	}
+
+	/**
+	 * Returns how long Discord took to acknowledge the last heartbeat, averaged over all shards of this process.
+	 *
+	 * @return Gateway latency in milliseconds or -1 if no heartbeat has been acknowledged yet.
+	 */
+	public long getGatewayLatency()
+	{
+		long sum = 0;
+		int count = 0;
+		for(WebSocket ws : Main.shardManager.getShards())
+		{
+			if(ws.getLatency() != -1)
+			{
+				sum += ws.getLatency();
+				count++;
+			}
+		}
+		return count == 0 ? -1 : sum / count;
+	}
+
+	/**
+	 * Returns counters, queue sizes and the heartbeat round trip time histogram of the gateway, e.g. <code>gateway.queue.raw</code> or <code>gateway.heartbeat.rtt.le100</code>,
+	 * the counters of the message and response caches, e.g. <code>cache.messages.hits</code> or <code>cache.responses.revalidated</code>, and the counters of the REST client, e.g. <code>ratelimit.parked</code>, <code>rest.coalesced</code> or <code>http.connections.reused</code>.
+	 *
+	 * @return Current metrics by name.
+	 */
+	public LinkedHashMap<String, Long> getMetrics()
+	{
+		final LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+		Main.shardManager.addMetrics(metrics);
+		MessageCache.addMetrics(metrics);
+		ResponseCache.addMetrics(metrics);
+		RateLimiter.addMetrics(metrics);
+		metrics.put("rest.coalesced", coalesced.get());
+		transport.addMetrics(metrics);
+		return metrics;
+	}
 }
@@ -0,0 +1,300 @@
+package de.timmyrs.suprdiscordbot.apis;
+
+import de.timmyrs.suprdiscordbot.LongMap;
+import de.timmyrs.suprdiscordbot.structures.Channel;
+import de.timmyrs.suprdiscordbot.structures.Guild;
+import de.timmyrs.suprdiscordbot.structures.Presence;
+import de.timmyrs.suprdiscordbot.structures.User;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * Indexes the cached guilds, channels, users and DMs by their ID, so {@link DiscordAPI} can look them up without scanning every guild.
+ * The gateway handlers keep it in sync with the cache.
+ * Users are only held weakly, so a user is forgotten once no cached member, presence, DM or message references it anymore.
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class EntityRegistry
+{
+	private static final LongMap<Guild> guilds = new LongMap<>();
+	private static final LongMap<Channel> channels = new LongMap<>();
+	private static final LongMap<UserReference> users = new LongMap<>();
+	private static final ReferenceQueue<User> collectedUsers = new ReferenceQueue<>();
+	private static final LongMap<Channel> dms = new LongMap<>();
+	private static final LongMap<Channel> dmsByRecipient = new LongMap<>();
+	/**
+	 * IDs of the guilds each user has a cached presence in. The arrays are replaced, never modified.
+	 */
+	private static final LongMap<long[]> presenceGuilds = new LongMap<>();
+
+	/**
+	 * Adds a guild together with its channels and presences.
+	 * The users of its members are interned by {@link Guild#linkChildren()}.
+	 *
+	 * @param g Guild to be added
+	 */
+	public static void addGuild(Guild g)
+	{
+		final Guild previous = guilds.put(g.getIdLong(), g);
+		if(previous != null && previous != g)
+		{
+			removeChannels(previous);
+			removePresences(previous);
+		}
+		for(Channel c : g.getChannels())
+		{
+			channels.put(c.getIdLong(), c);
+		}
+		for(Presence p : g.getPresences())
+		{
+			addPresence(p.user.getIdLong(), g.getIdLong());
+		}
+	}
+
+	/**
+	 * Removes a guild and its channels.
+	 *
+	 * @param id ID of the guild
+	 * @return The removed guild or null if it wasn't registered.
+	 */
+	public static Guild removeGuild(long id)
+	{
+		final Guild g = guilds.remove(id);
+		if(g != null)
+		{
+			removeChannels(g);
+			removePresences(g);
+		}
+		return g;
+	}
+
+	/**
+	 * Removes all guilds matching the given filter.
+	 *
+	 * @param filter Filter for the guilds to be removed
+	 */
+	public static void removeGuilds(Predicate<Guild> filter)
+	{
+		for(Guild g : guilds.values())
+		{
+			if(filter.test(g))
+			{
+				removeGuild(g.getIdLong());
+			}
+		}
+	}
+
+	/**
+	 * Adds or replaces a guild channel or a DM channel.
+	 * DM channels are only added while fewer than {@link CachePolicy#dms} are cached.
+	 *
+	 * @param c Channel to be added
+	 */
+	public static void addChannel(Channel c)
+	{
+		if(c.type == 1 || c.type == 3)
+		{
+			if(dms.size() >= CachePolicy.dms && dms.get(c.getIdLong()) == null)
+			{
+				return;
+			}
+			channels.put(c.getIdLong(), c);
+			dms.put(c.getIdLong(), c);
+			if(c.type == 1 && c.recipients != null && c.recipients.length > 0)
+			{
+				c.recipients[0] = internUser(c.recipients[0]);
+				dmsByRecipient.put(c.recipients[0].getIdLong(), c);
+			}
+		}
+		else
+		{
+			channels.put(c.getIdLong(), c);
+		}
+	}
+
+	/**
+	 * Returns the shared object of the given user, so all members, presences, message authors and DM recipients of a user reference the same object.
+	 * Partial users, which only have an ID, are returned as they are unless the user is known.
+	 *
+	 * @param u User
+	 * @return The shared object of the user.
+	 */
+	public static User internUser(User u)
+	{
+		if(u == null)
+		{
+			return null;
+		}
+		expungeUsers();
+		final User known = getUser(u.getIdLong());
+		if(known != null)
+		{
+			return known;
+		}
+		if(u.username == null || u.getIdLong() == 0)
+		{
+			return u;
+		}
+		final UserReference ref = new UserReference(u, collectedUsers);
+		UserReference interned;
+		while((interned = users.putIfAbsent(u.getIdLong(), ref)) != ref)
+		{
+			final User other = interned.get();
+			if(other != null)
+			{
+				return other;
+			}
+			users.remove(u.getIdLong(), interned);
+		}
+		return u;
+	}
+
+	/**
+	 * Records that a user has a presence in a guild.
+	 *
+	 * @param userId  ID of the user
+	 * @param guildId ID of the guild
+	 */
+	public static synchronized void addPresence(long userId, long guildId)
+	{
+		final long[] ids = presenceGuilds.get(userId);
+		if(ids == null)
+		{
+			presenceGuilds.put(userId, new long[]{guildId});
+			return;
+		}
+		for(long id : ids)
+		{
+			if(id == guildId)
+			{
+				return;
+			}
+		}
+		final long[] extended = Arrays.copyOf(ids, ids.length + 1);
+		extended[ids.length] = guildId;
+		presenceGuilds.put(userId, extended);
+	}
+
+	/**
+	 * Records that a user no longer has a presence in a guild.
+	 *
+	 * @param userId  ID of the user
+	 * @param guildId ID of the guild
+	 */
+	public static synchronized void removePresence(long userId, long guildId)
+	{
+		final long[] ids = presenceGuilds.get(userId);
+		if(ids == null)
+		{
+			return;
+		}
+		int i = 0;
+		while(i < ids.length && ids[i] != guildId)
+		{
+			i++;
+		}
+		if(i == ids.length)
+		{
+			return;
+		}
+		if(ids.length == 1)
+		{
+			presenceGuilds.remove(userId);
+			return;
+		}
+		final long[] reduced = new long[ids.length - 1];
+		System.arraycopy(ids, 0, reduced, 0, i);
+		System.arraycopy(ids, i + 1, reduced, i, reduced.length - i);
+		presenceGuilds.put(userId, reduced);
+	}
+
+	/**
+	 * @param userId ID of the user
+	 * @return The IDs of the guilds the user has a cached presence in. Must not be modified.
+	 */
+	public static long[] getPresenceGuilds(long userId)
+	{
+		final long[] ids = presenceGuilds.get(userId);
+		return ids == null ? new long[0] : ids;
+	}
+
+	public static Guild getGuild(long id)
+	{
+		return guilds.get(id);
+	}
+
+	public static Channel getChannel(long id)
+	{
+		return channels.get(id);
+	}
+
+	public static User getUser(long id)
+	{
+		final UserReference ref = users.get(id);
+		return ref == null ? null : ref.get();
+	}
+
+	/**
+	 * @param userId ID of the recipient
+	 * @return The DM channel with the given user or null if it isn't known.
+	 */
+	public static Channel getDM(long userId)
+	{
+		return dmsByRecipient.get(userId);
+	}
+
+	public static Collection<Guild> getGuilds()
+	{
+		return guilds.values();
+	}
+
+	public static Collection<Channel> getDMs()
+	{
+		return dms.values();
+	}
+
+	/**
+	 * Removes the users which were garbage collected since no cached structure references them anymore.
+	 */
+	private static void expungeUsers()
+	{
+		UserReference ref;
+		while((ref = (UserReference) collectedUsers.poll()) != null)
+		{
+			users.remove(ref.id, ref);
+		}
+	}
+
+	private static void removePresences(Guild g)
+	{
+		for(Presence p : g.getPresences())
+		{
+			removePresence(p.user.getIdLong(), g.getIdLong());
+		}
+	}
+
+	private static void removeChannels(Guild g)
+	{
+		for(Channel c : g.getChannels())
+		{
+			channels.remove(c.getIdLong(), c);
+		}
+	}
+
+	private static class UserReference extends WeakReference<User>
+	{
+		final long id;
+
+		UserReference(User u, ReferenceQueue<User> queue)
+		{
+			super(u, queue);
+			this.id = u.getIdLong();
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package de.timmyrs.suprdiscordbot.apis;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends HTTP/1.1 requests to a single host over TLS and keeps the connections alive, so following requests don't need a new TLS handshake.
+ * Idle connections are pooled and closed once they have been idle for longer than the server would keep them open.
+ * The REST API's transport takes its connect and read timeouts from <code>httpConnectTimeout</code> and <code>httpReadTimeout</code> in the <code>config.json</code>, in milliseconds (10000 and 30000 by default).
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class HttpTransport
+{
+	private static final long keepAlive = 30000;
+	private static final int maxIdle = 16;
+	private final String host;
+	private final int port;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param host           Host name
+	 * @param port           Port
+	 * @param connectTimeout Milliseconds to wait for a connection to be established
+	 * @param readTimeout    Milliseconds to wait for a response
+	 */
+	public HttpTransport(String host, int port, int connectTimeout, int readTimeout)
+	{
+		this.host = host;
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @param method  Method, e.g. PATCH
+	 * @param path    Path including the query
+	 * @param headers Request headers
+	 * @param body    Request body or null
+	 * @return The response.
+	 * @throws IOException If the request couldn't be sent or no response was received.
+	 */
+	public Response request(String method, String path, Map<String, String> headers, byte[] body) throws IOException
+	{
+		Connection con = poll();
+		if(con != null)
+		{
+			try
+			{
+				return exchange(con, method, path, headers, body);
+			}
+			catch(StaleConnectionException e)
+			{
+				// The server closed the idle connection before it could have processed the request, so it is safe to send it again.
+				con.close();
+			}
+		}
+		return exchange(open(), method, path, headers, body);
+	}
+
+	/**
+	 * Adds the connection counters of this transport, e.g. <code>http.connections.reused</code>, to the given metrics.
+	 *
+	 * @param metrics Metrics by name
+	 */
+	void addMetrics(Map<String, Long> metrics)
+	{
+		synchronized(idle)
+		{
+			metrics.put("http.connections.idle", (long) idle.size());
+		}
+		metrics.put("http.connections.opened", opened.get());
+		metrics.put("http.connections.reused", reused.get());
+	}
+
+	private Response exchange(Connection con, String method, String path, Map<String, String> headers, byte[] body) throws IOException
+	{
+		boolean sent = false;
+		boolean responded = false;
+		try
+		{
+			final StringBuilder head = new StringBuilder();
+			head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(host).append("\r\n");
+			for(Map.Entry<String, String> header : headers.entrySet())
+			{
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			if(body != null)
+			{
+				head.append("Content-Length: ").append(body.length).append("\r\n");
+			}
+			head.append("\r\n");
+			con.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+			if(body != null)
+			{
+				con.out.write(body);
+			}
+			con.out.flush();
+			sent = true;
+			final int first = con.in.read();
+			if(first == -1)
+			{
+				throw new EOFException("Connection closed without response");
+			}
+			responded = true;
+			final String status = (char) first + readLine(con.in);
+			final String[] statusParts = status.split(" ", 3);
+			if(statusParts.length < 2 || !statusParts[0].startsWith("HTTP/"))
+			{
+				throw new IOException("Invalid status line: " + status);
+			}
+			final int code = Integer.parseInt(statusParts[1]);
+			final HashMap<String, String> responseHeaders = new HashMap<>();
+			String line;
+			while(!(line = readLine(con.in)).isEmpty())
+			{
+				final int colon = line.indexOf(':');
+				if(colon > 0)
+				{
+					responseHeaders.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+			}
+			boolean reusable = !"close".equalsIgnoreCase(responseHeaders.get("connection"));
+			final byte[] responseBody;
+			if(method.equals("HEAD") || code == 204 || code == 304 || (code >= 100 && code < 200))
+			{
+				responseBody = new byte[0];
+			}
+			else if("chunked".equalsIgnoreCase(responseHeaders.get("transfer-encoding")))
+			{
+				responseBody = readChunked(con.in);
+			}
+			else if(responseHeaders.containsKey("content-length"))
+			{
+				responseBody = readFully(con.in, Integer.parseInt(responseHeaders.get("content-length")));
+			}
+			else
+			{
+				responseBody = readToEnd(con.in);
+				reusable = false;
+			}
+			if(reusable)
+			{
+				release(con);
+			}
+			else
+			{
+				con.close();
+			}
+			return new Response(code, responseHeaders, responseBody);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			con.close();
+			// A request which was sent completely might have been processed even though no response arrived, so only idempotent ones are sent again.
+			if(con.reused && !responded && !(e instanceof SocketTimeoutException) && (!sent || isIdempotent(method)))
+			{
+				throw new StaleConnectionException();
+			}
+			throw e;
+		}
+	}
+
+	private static boolean isIdempotent(String method)
+	{
+		return method.equals("GET") || method.equals("HEAD") || method.equals("PUT") || method.equals("DELETE");
+	}
+
+	private Connection poll()
+	{
+		synchronized(idle)
+		{
+			Connection con;
+			while((con = idle.pollLast()) != null)
+			{
+				if(System.currentTimeMillis() - con.idleSince < keepAlive && !con.socket.isClosed())
+				{
+					con.reused = true;
+					reused.incrementAndGet();
+					return con;
+				}
+				con.close();
+			}
+			return null;
+		}
+	}
+
+	private void release(Connection con)
+	{
+		con.idleSince = System.currentTimeMillis();
+		synchronized(idle)
+		{
+			if(idle.size() < maxIdle)
+			{
+				idle.addLast(con);
+				return;
+			}
+		}
+		con.close();
+	}
+
+	private Connection open() throws IOException
+	{
+		final Socket raw = new Socket();
+		try
+		{
+			raw.connect(new InetSocketAddress(host, port), connectTimeout);
+			raw.setSoTimeout(readTimeout);
+			raw.setTcpNoDelay(true);
+			final SSLSocket socket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(raw, host, port, true);
+			final SSLParameters parameters = socket.getSSLParameters();
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			socket.setSSLParameters(parameters);
+			socket.startHandshake();
+			opened.incrementAndGet();
+			return new Connection(socket);
+		}
+		catch(IOException e)
+		{
+			raw.close();
+			throw e;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException
+	{
+		final StringBuilder line = new StringBuilder();
+		int b;
+		while((b = in.read()) != '\n')
+		{
+			if(b == -1)
+			{
+				throw new EOFException("Connection closed in the middle of a response");
+			}
+			if(b != '\r')
+			{
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException
+	{
+		final byte[] bytes = new byte[length];
+		int read = 0;
+		while(read < length)
+		{
+			final int n = in.read(bytes, read, length - read);
+			if(n == -1)
+			{
+				throw new EOFException("Connection closed in the middle of a response");
+			}
+			read += n;
+		}
+		return bytes;
+	}
+
+	private static byte[] readChunked(InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		while(true)
+		{
+			String size = readLine(in);
+			if(size.contains(";"))
+			{
+				size = size.substring(0, size.indexOf(';'));
+			}
+			final int length = Integer.parseInt(size.trim(), 16);
+			if(length == 0)
+			{
+				// Skip the trailers
+				while(!readLine(in).isEmpty())
+				{
+				}
+				return body.toByteArray();
+			}
+			body.write(readFully(in, length));
+			readLine(in);
+		}
+	}
+
+	private static byte[] readToEnd(InputStream in) throws IOException
+	{
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) != -1)
+		{
+			body.write(buffer, 0, n);
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Response to a request sent through a {@link HttpTransport}.
+	 */
+	public static class Response
+	{
+		/**
+		 * HTTP status code.
+		 */
+		public final int status;
+		private final Map<String, String> headers;
+		private final byte[] body;
+
+		Response(int status, Map<String, String> headers, byte[] body)
+		{
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		/**
+		 * @param name Case-insensitive header name
+		 * @return The value of the header or null if it wasn't sent.
+		 */
+		public String getHeader(String name)
+		{
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * @return The body decoded as UTF-8.
+		 */
+		public String getBody()
+		{
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static class Connection
+	{
+		final SSLSocket socket;
+		final InputStream in;
+		final OutputStream out;
+		long idleSince;
+		boolean reused;
+
+		Connection(SSLSocket socket) throws IOException
+		{
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException ignored)
+			{
+			}
+		}
+	}
+
+	private static class StaleConnectionException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+}
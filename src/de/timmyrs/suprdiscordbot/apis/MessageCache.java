@@ -0,0 +1,316 @@
+package de.timmyrs.suprdiscordbot.apis;
+
+import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.structures.Message;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent {@link CachePolicy#messages} messages of every channel in a ring buffer, filled from <code>MESSAGE_CREATE</code>.
+ * Once the estimated size of all cached messages exceeds <code>cacheMessagesMemory</code> KiB (16384 by default),
+ * the oldest messages of the least recently used channels are evicted.
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class MessageCache
+{
+	private static final long budget = (Main.configuration.getInt("cacheMessagesMemory") > 0 ? Main.configuration.getInt("cacheMessagesMemory") : 16384) * 1024L;
+	private static final LinkedHashMap<Long, Ring> channels = new LinkedHashMap<>(16, 0.75f, true);
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evicted = new AtomicLong();
+	private static long bytes;
+	private static long count;
+
+	/**
+	 * @param m Message to be added as the newest message of its channel
+	 */
+	public static synchronized void add(Message m)
+	{
+		if(CachePolicy.messages == 0 || m.getIdLong() == 0)
+		{
+			return;
+		}
+		Ring ring = channels.get(m.getChannelIdLong());
+		if(ring == null)
+		{
+			ring = new Ring(CachePolicy.messages);
+			channels.put(m.getChannelIdLong(), ring);
+		}
+		else if(ring.indexOf(m.getIdLong()) != -1)
+		{
+			return;
+		}
+		final Message removed = ring.push(m);
+		if(removed != null)
+		{
+			forget(removed);
+		}
+		bytes += sizeOf(m);
+		count++;
+		evict();
+	}
+
+	/**
+	 * Seeds the cache of a channel with the most recent messages fetched from the REST API.
+	 * If messages of the channel are cached already, only the fetched messages older than all of them are added in front of them,
+	 * since the cache holds every message received since its oldest one, so a newer message which isn't cached has been deleted.
+	 *
+	 * @param channelId ID of the channel
+	 * @param messages  Most recent messages, newest first
+	 */
+	public static synchronized void seed(long channelId, Message[] messages)
+	{
+		if(CachePolicy.messages == 0 || messages == null || messages.length == 0)
+		{
+			return;
+		}
+		Ring ring = channels.get(channelId);
+		if(ring == null)
+		{
+			ring = new Ring(CachePolicy.messages);
+			channels.put(channelId, ring);
+		}
+		for(Message m : messages)
+		{
+			if(ring.size == CachePolicy.messages)
+			{
+				break;
+			}
+			if(m.getIdLong() != 0 && (ring.size == 0 || m.getIdLong() < ring.get(0).getIdLong()))
+			{
+				ring.prepend(m);
+				bytes += sizeOf(m);
+				count++;
+			}
+		}
+		if(ring.size == 0)
+		{
+			channels.remove(channelId);
+		}
+		evict();
+	}
+
+	/**
+	 * @param channelId ID of the channel
+	 * @param messageId ID of the message
+	 * @return The cached message or null if it isn't cached.
+	 */
+	public static synchronized Message get(long channelId, long messageId)
+	{
+		final Ring ring = channels.get(channelId);
+		final int i = ring == null ? -1 : ring.indexOf(messageId);
+		if(i == -1)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return ring.get(i);
+	}
+
+	/**
+	 * @param channelId ID of the channel
+	 * @param count     Number of messages
+	 * @return The most recent messages of the channel, newest first, or null if fewer are cached.
+	 */
+	public static synchronized Message[] getRecent(long channelId, int count)
+	{
+		final Ring ring = channels.get(channelId);
+		if(ring == null || ring.size < count)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		final Message[] recent = new Message[count];
+		for(int i = 0; i < count; i++)
+		{
+			recent[i] = ring.get(ring.size - 1 - i);
+		}
+		return recent;
+	}
+
+	/**
+	 * Replaces a cached message with its updated version.
+	 *
+	 * @param m Partial update of the message
+	 * @return The cached version from before the update or null if the message isn't cached.
+	 */
+	public static synchronized Message update(Message m)
+	{
+		final Ring ring = channels.get(m.getChannelIdLong());
+		final int i = ring == null ? -1 : ring.indexOf(m.getIdLong());
+		if(i == -1)
+		{
+			return null;
+		}
+		final Message previous = ring.get(i);
+		final Message updated = previous.merge(m);
+		ring.set(i, updated);
+		bytes += sizeOf(updated) - sizeOf(previous);
+		return previous;
+	}
+
+	/**
+	 * @param channelId ID of the channel
+	 * @param messageId ID of the message
+	 * @return The removed message or null if it wasn't cached.
+	 */
+	public static synchronized Message remove(long channelId, long messageId)
+	{
+		final Ring ring = channels.get(channelId);
+		final int i = ring == null ? -1 : ring.indexOf(messageId);
+		if(i == -1)
+		{
+			return null;
+		}
+		final Message removed = ring.remove(i);
+		forget(removed);
+		if(ring.size == 0)
+		{
+			channels.remove(channelId);
+		}
+		return removed;
+	}
+
+	/**
+	 * Drops the cached messages of a channel, e.g. because messages may have been missed while its shard was disconnected.
+	 *
+	 * @param channelId ID of the channel
+	 */
+	public static synchronized void clear(long channelId)
+	{
+		final Ring ring = channels.remove(channelId);
+		if(ring != null)
+		{
+			for(int i = 0; i < ring.size; i++)
+			{
+				forget(ring.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Adds the metrics of the message cache, e.g. <code>cache.messages.hits</code>, to the given metrics.
+	 *
+	 * @param metrics Metrics by name
+	 */
+	static synchronized void addMetrics(Map<String, Long> metrics)
+	{
+		metrics.put("cache.messages.count", count);
+		metrics.put("cache.messages.bytes", bytes);
+		metrics.put("cache.messages.hits", hits.get());
+		metrics.put("cache.messages.misses", misses.get());
+		metrics.put("cache.messages.evicted", evicted.get());
+	}
+
+	private static void evict()
+	{
+		final Iterator<Ring> it = channels.values().iterator();
+		while(bytes > budget && it.hasNext())
+		{
+			final Ring ring = it.next();
+			while(bytes > budget && ring.size > 0)
+			{
+				forget(ring.remove(0));
+				evicted.incrementAndGet();
+			}
+			if(ring.size == 0)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	private static void forget(Message m)
+	{
+		bytes -= sizeOf(m);
+		count--;
+	}
+
+	private static long sizeOf(Message m)
+	{
+		return 256 + (m.content == null ? 0 : m.content.length() * 2L) + 512L * ((m.embeds == null ? 0 : m.embeds.length) + (m.attachments == null ? 0 : m.attachments.length));
+	}
+
+	/**
+	 * Messages of a channel, oldest first.
+	 */
+	private static class Ring
+	{
+		private final Message[] messages;
+		private int head;
+		private int size;
+
+		Ring(int capacity)
+		{
+			messages = new Message[capacity];
+		}
+
+		/**
+		 * @return The message which was overwritten or null.
+		 */
+		Message push(Message m)
+		{
+			final int slot = (head + size) % messages.length;
+			final Message removed = messages[slot];
+			messages[slot] = m;
+			if(size == messages.length)
+			{
+				head = (head + 1) % messages.length;
+				return removed;
+			}
+			size++;
+			return null;
+		}
+
+		/**
+		 * Adds a message in front of the oldest one. The ring must not be full.
+		 */
+		void prepend(Message m)
+		{
+			head = (head - 1 + messages.length) % messages.length;
+			messages[head] = m;
+			size++;
+		}
+
+		Message get(int i)
+		{
+			return messages[(head + i) % messages.length];
+		}
+
+		void set(int i, Message m)
+		{
+			messages[(head + i) % messages.length] = m;
+		}
+
+		int indexOf(long id)
+		{
+			for(int i = size - 1; i >= 0; i--)
+			{
+				if(get(i).getIdLong() == id)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		Message remove(int i)
+		{
+			final Message removed = get(i);
+			for(; i < size - 1; i++)
+			{
+				set(i, get(i + 1));
+			}
+			set(size - 1, null);
+			size--;
+			return removed;
+		}
+	}
+}
@@ -122,6 +122,13 @@ public class PermissionAPI
 	 */
 	public final int MANAGE_EMOJIS = 0x40000000;
 
+	private static final String[] names = new String[]{"MANAGE_EMOJIS", "MANAGE_WEBHOOKS", "MANAGE_ROLES", "MANAGE_NICKNAMES", "CHANGE_NICKNAME", "USE_VAD", "MOVE_MEMBERS", "DEAFEN_MEMBERS", "MUTE_MEMBERS", "SPEAK", "CONNECT", "USE_EXTERNAL_EMOJIS", "MENTION_EVERYONE", "READ_MESSAGE_HISTORY", "ATTACH_FILES", "EMBED_LINKS", "MANAGE_MESSAGES", "SEND_TTS_MESSAGES", "SEND_MESSAGES", "READ_MESSAGES", "ADD_REACTIONS", "MANAGE_GUILD", "MANAGE_CHANNELS", "ADMINISTRATOR", "BAN_MEMBERS", "KICK_MEMBERS", "CREATE_INSTANT_INVITE"};
+	private static final int[] values = new int[]{0x40000000, 0x20000000, 0x10000000, 0x08000000, 0x04000000, 0x02000000, 0x01000000, 0x00800000, 0x00400000, 0x00200000, 0x00100000, 0x00040000, 0x00020000, 0x00010000, 0x00008000, 0x00004000, 0x00002000, 0x00001000, 0x00000800, 0x00000400, 0x00000040, 0x00000020, 0x00000010, 0x00000008, 0x00000004, 0x00000002, 0x00000001};
+	/**
+	 * Permission bit set of all permissions, which administrators and guild owners have.
+	 */
+	public static final int ALL = 0x7FF7FC7F;
+
 	/**
 	 * Returns an array of string arrays of permission name and hex values ordered by highest hex value first
 	 *
@@ -129,35 +136,12 @@ public class PermissionAPI
 	 */
 	public String[][] getPermArray()
 	{
-		return new String[][]{
-				new String[]{"MANAGE_EMOJIS", "0x40000000"},
-				new String[]{"MANAGE_WEBHOOKS", "0x20000000"},
-				new String[]{"MANAGE_ROLES", "0x10000000"},
-				new String[]{"MANAGE_NICKNAMES", "0x08000000"},
-				new String[]{"CHANGE_NICKNAME", "0x04000000"},
-				new String[]{"USE_VAD", "0x02000000"},
-				new String[]{"MOVE_MEMBERS", "0x01000000"},
-				new String[]{"DEAFEN_MEMBERS", "0x00800000"},
-				new String[]{"MUTE_MEMBERS", "0x00400000"},
-				new String[]{"SPEAK", "0x00200000"},
-				new String[]{"CONNECT", "0x00100000"},
-				new String[]{"USE_EXTERNAL_EMOJIS", "0x00040000"},
-				new String[]{"MENTION_EVERYONE", "0x00020000"},
-				new String[]{"READ_MESSAGE_HISTORY", "0x00010000"},
-				new String[]{"ATTACH_FILES", "0x00008000"},
-				new String[]{"EMBED_LINKS", "0x00004000"},
-				new String[]{"MANAGE_MESSAGES", "0x00002000"},
-				new String[]{"SEND_TTS_MESSAGES", "0x00001000"},
-				new String[]{"SEND_MESSAGES", "0x00000800"},
-				new String[]{"READ_MESSAGES", "0x00000400"},
-				new String[]{"ADD_REACTIONS", "0x00000040"},
-				new String[]{"MANAGE_GUILD", "0x00000020"},
-				new String[]{"MANAGE_CHANNELS", "0x00000010"},
-				new String[]{"ADMINISTRATOR", "0x00000008"},
-				new String[]{"BAN_MEMBERS", "0x00000004"},
-				new String[]{"KICK_MEMBERS", "0x00000002"},
-				new String[]{"CREATE_INSTANT_INVITE", "0x00000001"}
-		};
+		final String[][] perms = new String[names.length][];
+		for(int i = 0; i < names.length; i++)
+		{
+			perms[i] = new String[]{names[i], String.format("0x%08X", values[i])};
+		}
+		return perms;
 	}
 
 	/**
@@ -169,25 +153,15 @@ public class PermissionAPI
 	 */
 	public String[] bitsToStrings(int i)
 	{
-		try
+		final ArrayList<String> perms = new ArrayList<>();
+		for(int j = 0; j < values.length; j++)
 		{
-			ArrayList<String> perms = new ArrayList<>();
-			for(String[] perm : getPermArray())
+			if((i & values[j]) != 0)
 			{
-				int val = Long.decode(perm[1]).intValue();
-				if((i - val) >= 0)
-				{
-					i -= val;
-					perms.add(perm[0]);
-				}
+				perms.add(names[j]);
 			}
-			return perms.toArray(new String[perms.size()]);
-		}
-		catch(Exception e)
-		{
-			e.printStackTrace();
 		}
-		return new String[]{};
+		return perms.toArray(new String[perms.size()]);
 	}
 
 	/**
@@ -198,18 +172,19 @@ public class PermissionAPI
 	 */
 	public boolean allowsFor(int permissions, String permission)
 	{
-		return allowsFor(bitsToStrings(permissions), permission);
+		final int i = indexOf(permission);
+		return i != -1 && (permissions & values[i]) != 0;
 	}
 
 	/**
 	 * @param permissions Permission bit set
-	 * @param permission  Permission bit value
+	 * @param permission  Permission bit value, or bit set of permissions which must all be included
 	 * @return Weather the permission is included in the permission bit set
 	 * @since 1.2
 	 */
 	public boolean allowsFor(int permissions, int permission)
 	{
-		return allowsFor(bitsToStrings(permissions), permission);
+		return permission != 0 && (permissions & permission) == permission;
 	}
 
 	/**
@@ -238,13 +213,25 @@ public class PermissionAPI
 	 */
 	public boolean allowsFor(String[] permissions, int permission)
 	{
-		for(String[] perm : getPermArray())
+		for(int i = 0; i < values.length; i++)
 		{
-			if(Long.decode(perm[1]).intValue() == permission)
+			if(values[i] == permission)
 			{
-				return allowsFor(permissions, perm[0]);
+				return allowsFor(permissions, names[i]);
 			}
 		}
 		return false;
 	}
+
+	private static int indexOf(String name)
+	{
+		for(int i = 0; i < names.length; i++)
+		{
+			if(names[i].equals(name))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
 }
@@ -0,0 +1,454 @@
+package de.timmyrs.suprdiscordbot.apis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps requests to the REST API within Discord's rate limits, as announced by the <code>X-RateLimit-*</code> headers of its responses.
+ * <p>
+ * Requests are grouped by route, which is the method and the endpoint with its IDs replaced, and by their major parameter (channel, guild or webhook ID).
+ * Routes which Discord reports with the same <code>X-RateLimit-Bucket</code> share a bucket, as long as their major parameter is the same.
+ * Routes whose responses don't have rate limit headers aren't limited.
+ * A request to a bucket without remaining requests is parked until the bucket resets, and all requests wait while the global rate limit is hit.
+ * Asynchronous requests don't take up a thread while they wait, as they are resumed by a timer or by the response which frees up their bucket.
+ * Until the first response of a bucket tells its limit, only one request is sent at a time.
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class RateLimiter
+{
+	private static final HashMap<String, String> bucketHashes = new HashMap<>();
+	private static final HashMap<String, Bucket> buckets = new HashMap<>();
+	private static final Object global = new Object();
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r->new Thread(r, "RateLimiter"));
+	private static final AtomicLong parked = new AtomicLong();
+	private static final AtomicLong limited = new AtomicLong();
+	private static long globalResetAt;
+
+	/**
+	 * Waits until a request may be sent to the given endpoint and reserves it.
+	 * {@link RateLimiter#update(Bucket, HttpTransport.Response)} must be called once the response arrived.
+	 *
+	 * @param method   Method
+	 * @param endpoint Endpoint without query
+	 * @return The bucket the request was reserved in.
+	 */
+	public static Bucket acquire(String method, String endpoint)
+	{
+		final Bucket bucket = bucketOf(method, endpoint);
+		awaitGlobal();
+		bucket.reserve();
+		return bucket;
+	}
+
+	/**
+	 * Reserves a request to the given endpoint without blocking the calling thread.
+	 * {@link RateLimiter#update(Bucket, HttpTransport.Response)} must be called once the response arrived.
+	 *
+	 * @param method   Method
+	 * @param endpoint Endpoint without query
+	 * @return A future which is completed with the bucket the request was reserved in, once the request may be sent.
+	 */
+	public static CompletableFuture<Bucket> acquireAsync(String method, String endpoint)
+	{
+		final CompletableFuture<Bucket> future = new CompletableFuture<>();
+		bucketOf(method, endpoint).reserveAsync(future);
+		return future;
+	}
+
+	/**
+	 * Updates the bucket of a request from the headers of its response.
+	 *
+	 * @param bucket   Bucket returned by {@link RateLimiter#acquire(String, String)}
+	 * @param response Response of the request or null if it failed without one
+	 * @return Whether the request was rate limited and should be repeated.
+	 */
+	public static boolean update(Bucket bucket, HttpTransport.Response response)
+	{
+		if(response == null)
+		{
+			bucket.release(-1, -1, 0);
+			return false;
+		}
+		final int status = response.status;
+		final String hash = response.getHeader("X-RateLimit-Bucket");
+		if(hash != null)
+		{
+			synchronized(buckets)
+			{
+				bucketHashes.put(bucket.route, hash);
+				if(!buckets.containsKey(hash + ":" + bucket.major))
+				{
+					buckets.put(hash + ":" + bucket.major, bucket);
+				}
+			}
+		}
+		long resetAfter = parseMillis(response.getHeader("X-RateLimit-Reset-After"));
+		if(resetAfter == -1 && response.getHeader("X-RateLimit-Reset") != null)
+		{
+			resetAfter = Math.max(parseMillis(response.getHeader("X-RateLimit-Reset")) - System.currentTimeMillis(), 0);
+		}
+		if(status == 429)
+		{
+			limited.incrementAndGet();
+			long retryAfter = resetAfter;
+			if(retryAfter <= 0)
+			{
+				retryAfter = parseMillis(response.getHeader("Retry-After"));
+				if(retryAfter <= 0)
+				{
+					retryAfter = 1000;
+				}
+			}
+			if("true".equals(response.getHeader("X-RateLimit-Global")))
+			{
+				synchronized(global)
+				{
+					globalResetAt = Math.max(globalResetAt, System.currentTimeMillis() + retryAfter);
+				}
+				bucket.release(-1, -1, 0);
+			}
+			else
+			{
+				bucket.release(Math.max(bucket.limit, 1), 0, retryAfter);
+			}
+			return true;
+		}
+		final long limit = parseLong(response.getHeader("X-RateLimit-Limit"));
+		if(limit == -1)
+		{
+			bucket.release(Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+		}
+		else
+		{
+			bucket.release(limit, parseLong(response.getHeader("X-RateLimit-Remaining")), resetAfter);
+		}
+		return false;
+	}
+
+	/**
+	 * Removes buckets which have reset and have no requests waiting or in flight.
+	 *
+	 * @return Number of removed buckets.
+	 */
+	public static int cleanUp()
+	{
+		int removed = 0;
+		synchronized(buckets)
+		{
+			final Iterator<Bucket> it = buckets.values().iterator();
+			while(it.hasNext())
+			{
+				if(it.next().isIdle())
+				{
+					it.remove();
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Adds the counters of the rate limiter, e.g. <code>ratelimit.parked</code>, to the given metrics.
+	 *
+	 * @param metrics Metrics by name
+	 */
+	static void addMetrics(Map<String, Long> metrics)
+	{
+		synchronized(buckets)
+		{
+			metrics.put("ratelimit.buckets", (long) buckets.size());
+		}
+		metrics.put("ratelimit.parked", parked.get());
+		metrics.put("ratelimit.limited", limited.get());
+	}
+
+	/**
+	 * @return The method and the endpoint with its IDs replaced, e.g. <code>DELETE channels/:id/messages/:id</code>.
+	 */
+	static String routeOf(String method, String endpoint)
+	{
+		final String[] parts = trim(endpoint).split("/");
+		final StringBuilder route = new StringBuilder(method);
+		for(int i = 0; i < parts.length; i++)
+		{
+			route.append(i == 0 ? " " : "/");
+			if(isId(parts[i]))
+			{
+				route.append(":id");
+			}
+			else if(i > 0 && parts[i - 1].equals("reactions"))
+			{
+				// Reactions share a bucket regardless of the emoji
+				route.append(":emoji");
+			}
+			else
+			{
+				route.append(parts[i]);
+			}
+		}
+		return route.toString();
+	}
+
+	private static Bucket bucketOf(String method, String endpoint)
+	{
+		final String route = routeOf(method, endpoint);
+		final String major = majorOf(endpoint);
+		synchronized(buckets)
+		{
+			final String hash = bucketHashes.get(route);
+			final String key = (hash == null ? route : hash) + ":" + major;
+			Bucket bucket = buckets.get(key);
+			if(bucket == null)
+			{
+				bucket = new Bucket(route, major);
+				buckets.put(key, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	private static String majorOf(String endpoint)
+	{
+		final String[] parts = trim(endpoint).split("/");
+		return parts.length > 1 && isMajor(parts[0]) ? parts[1] : "";
+	}
+
+	private static String trim(String endpoint)
+	{
+		int start = 0;
+		while(start < endpoint.length() && endpoint.charAt(start) == '/')
+		{
+			start++;
+		}
+		final int query = endpoint.indexOf('?');
+		return endpoint.substring(start, query == -1 ? endpoint.length() : query);
+	}
+
+	private static boolean isMajor(String part)
+	{
+		return part.equals("channels") || part.equals("guilds") || part.equals("webhooks");
+	}
+
+	private static boolean isId(String part)
+	{
+		if(part.isEmpty())
+		{
+			return false;
+		}
+		for(int i = 0; i < part.length(); i++)
+		{
+			if(part.charAt(i) < '0' || part.charAt(i) > '9')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Milliseconds until the global rate limit resets or 0 if it isn't hit.
+	 */
+	private static long globalDelay()
+	{
+		synchronized(global)
+		{
+			return Math.max(globalResetAt - System.currentTimeMillis(), 0);
+		}
+	}
+
+	private static void awaitGlobal()
+	{
+		synchronized(global)
+		{
+			long wait;
+			while((wait = globalResetAt - System.currentTimeMillis()) > 0)
+			{
+				parked.incrementAndGet();
+				try
+				{
+					global.wait(wait);
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private static long parseLong(String value)
+	{
+		if(value != null)
+		{
+			try
+			{
+				return Long.parseLong(value.trim());
+			}
+			catch(NumberFormatException ignored)
+			{
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param seconds Seconds, which may have a fractional part
+	 * @return The seconds in milliseconds or -1 if not given.
+	 */
+	private static long parseMillis(String seconds)
+	{
+		if(seconds != null)
+		{
+			try
+			{
+				return (long) Math.ceil(Double.parseDouble(seconds.trim()) * 1000);
+			}
+			catch(NumberFormatException ignored)
+			{
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Requests which share a rate limit.
+	 * Callers are parked on the bucket until it resets or a response tells them its limit.
+	 */
+	public static class Bucket
+	{
+		private final String route;
+		private final String major;
+		private final ArrayList<CompletableFuture<Bucket>> waiting = new ArrayList<>();
+		private int limit = -1;
+		private int remaining = 1;
+		private long resetAt;
+		private int inFlight;
+
+		private Bucket(String route, String major)
+		{
+			this.route = route;
+			this.major = major;
+		}
+
+		/**
+		 * Reserves a request if there is one remaining.
+		 *
+		 * @return 0 if a request was reserved, otherwise the milliseconds until the bucket resets or -1 if a response in flight has to tell the limit first.
+		 */
+		private long tryReserve()
+		{
+			final long now = System.currentTimeMillis();
+			if(resetAt != 0 && now >= resetAt)
+			{
+				remaining = (limit == -1 ? 1 : limit) - inFlight;
+				resetAt = 0;
+			}
+			if(remaining > 0)
+			{
+				remaining--;
+				inFlight++;
+				return 0;
+			}
+			parked.incrementAndGet();
+			return resetAt == 0 ? -1 : resetAt - now;
+		}
+
+		private synchronized void reserve()
+		{
+			long delay;
+			while((delay = tryReserve()) != 0)
+			{
+				try
+				{
+					wait(delay == -1 ? 0 : delay);
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					inFlight++;
+					return;
+				}
+			}
+		}
+
+		private void reserveAsync(CompletableFuture<Bucket> future)
+		{
+			long delay = globalDelay();
+			if(delay == 0)
+			{
+				synchronized(this)
+				{
+					delay = tryReserve();
+					if(delay == -1)
+					{
+						waiting.add(future);
+					}
+				}
+			}
+			if(delay == 0)
+			{
+				future.complete(this);
+			}
+			else if(delay > 0)
+			{
+				scheduler.schedule(()->reserveAsync(future), delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * @param limit      Limit of the bucket or -1 if unknown
+		 * @param remaining  Remaining requests or -1 if unknown
+		 * @param resetAfter Milliseconds until the bucket resets
+		 */
+		private void release(long limit, long remaining, long resetAfter)
+		{
+			final ArrayList<CompletableFuture<Bucket>> resumed;
+			synchronized(this)
+			{
+				inFlight--;
+				if(limit > 0)
+				{
+					this.limit = (int) limit;
+				}
+				if(remaining >= 0 && resetAfter > 0)
+				{
+					this.remaining = (int) Math.max(remaining - inFlight, 0);
+					this.resetAt = System.currentTimeMillis() + resetAfter;
+				}
+				else if(this.limit == Integer.MAX_VALUE)
+				{
+					this.remaining = Integer.MAX_VALUE;
+				}
+				else if(inFlight == 0 && this.remaining <= 0 && (this.resetAt == 0 || System.currentTimeMillis() >= this.resetAt))
+				{
+					// The response didn't tell when the bucket resets, so nothing else would wake the requests waiting for it. Allow the next request to find out.
+					this.remaining = 1;
+					this.resetAt = 0;
+				}
+				notifyAll();
+				resumed = new ArrayList<>(waiting);
+				waiting.clear();
+			}
+			for(CompletableFuture<Bucket> future : resumed)
+			{
+				reserveAsync(future);
+			}
+		}
+
+		private synchronized boolean isIdle()
+		{
+			return inFlight == 0 && waiting.isEmpty() && (resetAt == 0 || System.currentTimeMillis() >= resetAt);
+		}
+	}
+}
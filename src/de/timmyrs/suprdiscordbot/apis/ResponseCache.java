@@ -0,0 +1,323 @@
+package de.timmyrs.suprdiscordbot.apis;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import de.timmyrs.suprdiscordbot.structures.Channel;
+import de.timmyrs.suprdiscordbot.structures.Member;
+import de.timmyrs.suprdiscordbot.structures.Message;
+import de.timmyrs.suprdiscordbot.structures.Presence;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the responses of REST GET requests to read endpoints, such as <code>/users/{id}</code> or <code>/guilds/{id}/roles</code>, for a time to live depending on their route.
+ * Once expired, a response with an <code>ETag</code> or <code>Last-Modified</code> header is revalidated with a conditional request instead of being fetched again.
+ * The gateway events which change a resource drop its response, see {@link ResponseCache#invalidate(String, Object)}, and so do successful writes to the resource or one of its sub-resources through {@link DiscordAPI}.
+ * A response which was invalidated while its request was in flight isn't stored.
+ * At most {@link CachePolicy#responses} responses are kept, evicting the least recently used ones.
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class ResponseCache
+{
+	private static final HashMap<String, Long> ttls = new HashMap<>();
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * Generation of the GET request in flight for each endpoint, which is dropped once the endpoint is invalidated.
+	 */
+	private static final HashMap<String, Long> pending = new HashMap<>();
+	private static long generation;
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong revalidated = new AtomicLong();
+	private static final AtomicLong invalidated = new AtomicLong();
+
+	static
+	{
+		ttls.put("GET users/:id", 300000L);
+		ttls.put("GET users/@me/channels", 60000L);
+		ttls.put("GET channels/:id", 60000L);
+		ttls.put("GET channels/:id/messages/:id", 60000L);
+		ttls.put("GET guilds/:id", 60000L);
+		ttls.put("GET guilds/:id/roles", 60000L);
+		ttls.put("GET guilds/:id/channels", 60000L);
+		ttls.put("GET guilds/:id/members/:id", 60000L);
+	}
+
+	/**
+	 * @param url Endpoint including the query
+	 * @return The response body if it was cached and hasn't expired yet, otherwise null.
+	 */
+	static synchronized String getFresh(String url)
+	{
+		if(CachePolicy.responses == 0)
+		{
+			return null;
+		}
+		final Entry entry = entries.get(url);
+		if(entry != null && System.currentTimeMillis() < entry.expiresAt)
+		{
+			hits.incrementAndGet();
+			return entry.body;
+		}
+		return null;
+	}
+
+	/**
+	 * Starts a GET request, so its response can be told apart from the ones of requests started before an invalidation.
+	 *
+	 * @param url     Endpoint including the query
+	 * @param headers Request headers, to which the headers for revalidating an expired response are added
+	 * @return The request, to be passed to {@link ResponseCache#put(Request, HttpTransport.Response)} or {@link ResponseCache#abandon(Request)}.
+	 */
+	static synchronized Request begin(String url, Map<String, String> headers)
+	{
+		final Request request = new Request(url, ++generation);
+		pending.put(url, request.generation);
+		final Entry entry = entries.get(url);
+		if(entry != null)
+		{
+			request.revalidating = entry.body;
+			if(entry.etag != null)
+			{
+				headers.put("If-None-Match", entry.etag);
+			}
+			if(entry.lastModified != null)
+			{
+				headers.put("If-Modified-Since", entry.lastModified);
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Ends a GET request which got no response.
+	 *
+	 * @param request Request returned by {@link ResponseCache#begin(String, Map)}
+	 */
+	static synchronized void abandon(Request request)
+	{
+		pending.remove(request.url, request.generation);
+	}
+
+	/**
+	 * Ends a GET request, storing the response if its route is cacheable or renewing the cached response if it is <code>304 Not Modified</code>.
+	 * Nothing is stored if the endpoint was invalidated while the request was in flight.
+	 *
+	 * @param request  Request returned by {@link ResponseCache#begin(String, Map)}
+	 * @param response Response
+	 * @return The response body, which is the cached one for a 304.
+	 */
+	static synchronized String put(Request request, HttpTransport.Response response)
+	{
+		final String url = request.url;
+		final boolean current = pending.remove(url, request.generation);
+		final Long ttl = ttls.get(RateLimiter.routeOf("GET", url));
+		if(response.status == 304)
+		{
+			final Entry entry = entries.get(url);
+			if(current && entry != null)
+			{
+				entry.expiresAt = System.currentTimeMillis() + (ttl == null ? 0 : ttl);
+			}
+			if(request.revalidating == null)
+			{
+				return response.getBody();
+			}
+			revalidated.incrementAndGet();
+			return request.revalidating;
+		}
+		final String body = response.getBody();
+		if(current && response.status == 200 && ttl != null && CachePolicy.responses != 0 && url.indexOf('?') == -1 && !"no-store".equals(response.getHeader("Cache-Control")))
+		{
+			entries.put(url, new Entry(body, System.currentTimeMillis() + ttl, response.getHeader("ETag"), response.getHeader("Last-Modified")));
+			if(entries.size() > CachePolicy.responses)
+			{
+				entries.remove(entries.keySet().iterator().next());
+			}
+		}
+		return body;
+	}
+
+	/**
+	 * Drops the cached responses of the resource written to by a successful non-GET request and of the resources it is part of, e.g. <code>guilds/1/members/2</code> for <code>guilds/1/members/2/roles/3</code>.
+	 *
+	 * @param url Endpoint of the request
+	 */
+	static void invalidateWrite(String url)
+	{
+		int end = url.indexOf('?');
+		String resource = (end == -1 ? url : url.substring(0, end));
+		while(!resource.isEmpty())
+		{
+			remove(resource);
+			end = resource.lastIndexOf('/');
+			resource = (end == -1 ? "" : resource.substring(0, end));
+		}
+	}
+
+	/**
+	 * Drops the cached responses of the resources changed by the given gateway event.
+	 *
+	 * @param event Event name, e.g. <code>CHANNEL_UPDATE</code>
+	 * @param data  Data of the event or null if it was skipped, in which case all responses of the routes the event may change are dropped
+	 */
+	public static void invalidate(String event, Object data)
+	{
+		if(data == null)
+		{
+			switch(event)
+			{
+				case "MESSAGE_UPDATE":
+				case "MESSAGE_DELETE":
+				case "MESSAGE_DELETE_BULK":
+				case "MESSAGE_REACTION_ADD":
+				case "MESSAGE_REACTION_REMOVE":
+				case "MESSAGE_REACTION_REMOVE_ALL":
+					removeRoute("GET channels/:id/messages/:id");
+					break;
+				default:
+			}
+			return;
+		}
+		switch(event)
+		{
+			case "READY":
+				synchronized(ResponseCache.class)
+				{
+					invalidated.addAndGet(entries.size());
+					entries.clear();
+					pending.clear();
+				}
+				break;
+			case "GUILD_UPDATE":
+			case "GUILD_DELETE":
+				remove("guilds/" + ((JsonObject) data).get("id").getAsString());
+				break;
+			case "GUILD_ROLE_CREATE":
+			case "GUILD_ROLE_UPDATE":
+			case "GUILD_ROLE_DELETE":
+				remove("guilds/" + ((JsonObject) data).get("guild_id").getAsString() + "/roles");
+				break;
+			case "CHANNEL_CREATE":
+			case "CHANNEL_DELETE":
+				final JsonObject channel = (JsonObject) data;
+				remove("channels/" + channel.get("id").getAsString());
+				remove(channel.has("guild_id") ? "guilds/" + channel.get("guild_id").getAsString() + "/channels" : "users/@me/channels");
+				break;
+			case "CHANNEL_UPDATE":
+				final Channel c = (Channel) data;
+				remove("channels/" + c.getId());
+				remove(c.getGuildId() == null ? "users/@me/channels" : "guilds/" + c.getGuildId() + "/channels");
+				break;
+			case "GUILD_MEMBER_ADD":
+			case "GUILD_MEMBER_UPDATE":
+				final Member m = (Member) data;
+				remove("users/" + m.user.getId());
+				remove("guilds/" + m.getGuildId() + "/members/" + m.user.getId());
+				break;
+			case "GUILD_MEMBER_REMOVE":
+				final Presence p = (Presence) data;
+				remove("guilds/" + p.getGuildId() + "/members/" + p.user.getId());
+				break;
+			case "PRESENCE_UPDATE":
+				final Presence presence = (Presence) data;
+				if(presence.user.username != null)
+				{
+					remove("users/" + presence.user.getId());
+				}
+				break;
+			case "USER_UPDATE":
+				remove("users/" + ((JsonObject) data).get("id").getAsString());
+				break;
+			case "MESSAGE_UPDATE":
+			case "MESSAGE_DELETE":
+				final Message msg = (Message) data;
+				remove("channels/" + msg.getChannelIdLong() + "/messages/" + msg.getId());
+				break;
+			case "MESSAGE_DELETE_BULK":
+				final JsonObject bulk = (JsonObject) data;
+				for(JsonElement id : bulk.getAsJsonArray("ids"))
+				{
+					remove("channels/" + bulk.get("channel_id").getAsString() + "/messages/" + id.getAsString());
+				}
+				break;
+			case "MESSAGE_REACTION_ADD":
+			case "MESSAGE_REACTION_REMOVE":
+			case "MESSAGE_REACTION_REMOVE_ALL":
+				final JsonObject reaction = (JsonObject) data;
+				remove("channels/" + reaction.get("channel_id").getAsString() + "/messages/" + reaction.get("message_id").getAsString());
+				break;
+			default:
+		}
+	}
+
+	/**
+	 * Adds the counters of the response cache, e.g. <code>cache.responses.hits</code>, to the given metrics.
+	 *
+	 * @param metrics Metrics by name
+	 */
+	static synchronized void addMetrics(Map<String, Long> metrics)
+	{
+		metrics.put("cache.responses.count", (long) entries.size());
+		metrics.put("cache.responses.hits", hits.get());
+		metrics.put("cache.responses.revalidated", revalidated.get());
+		metrics.put("cache.responses.invalidated", invalidated.get());
+	}
+
+	private static synchronized void remove(String url)
+	{
+		pending.remove(url);
+		if(entries.remove(url) != null)
+		{
+			invalidated.incrementAndGet();
+		}
+	}
+
+	private static synchronized void removeRoute(String route)
+	{
+		pending.keySet().removeIf(url->RateLimiter.routeOf("GET", url).equals(route));
+		final Iterator<String> it = entries.keySet().iterator();
+		while(it.hasNext())
+		{
+			if(RateLimiter.routeOf("GET", it.next()).equals(route))
+			{
+				it.remove();
+				invalidated.incrementAndGet();
+			}
+		}
+	}
+
+	static class Request
+	{
+		final String url;
+		final long generation;
+		String revalidating;
+
+		Request(String url, long generation)
+		{
+			this.url = url;
+			this.generation = generation;
+		}
+	}
+
+	private static class Entry
+	{
+		final String body;
+		final String etag;
+		final String lastModified;
+		long expiresAt;
+
+		Entry(String body, long expiresAt, String etag, String lastModified)
+		{
+			this.body = body;
+			this.expiresAt = expiresAt;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+}
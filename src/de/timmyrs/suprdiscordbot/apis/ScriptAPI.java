@@ -37,6 +37,7 @@ public class ScriptAPI
 		else
 		{
 			this.script.events.put(event, function);
+			Main.scriptManager.refreshSubscriptions();
 		}
 		return this;
 	}
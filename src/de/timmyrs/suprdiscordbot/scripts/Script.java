@@ -7,12 +7,12 @@ import de.timmyrs.suprdiscordbot.apis.ScriptAPI;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 public class Script
 {
-	public HashMap<String, Consumer<Object>> events = new HashMap<>();
+	public ConcurrentHashMap<String, Consumer<Object>> events = new ConcurrentHashMap<>();
 	public String name;
 	String hash;
 	private boolean started = false;
@@ -35,6 +35,7 @@ public class Script
 			}
 		}
 		events.clear();
+		Main.scriptManager.refreshSubscriptions();
 		final ScriptEngine engine = Main.scriptManager.factory.getEngineByExtension("js");
 		engine.put("console", Main.consoleAPI);
 		engine.put("discord", Main.discordAPI);
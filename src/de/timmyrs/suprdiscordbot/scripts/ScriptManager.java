@@ -12,12 +12,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ScriptManager
 {
 	ScriptEngineManager factory;
-	private ArrayList<Script> scripts = new ArrayList<>();
+	private final List<Script> scripts = new CopyOnWriteArrayList<>();
 	private ArrayList<FailedScript> failedscripts = new ArrayList<>();
+	private volatile HashSet<String> subscribedEvents = new HashSet<>();
 
 	public ScriptManager()
 	{
@@ -56,6 +60,7 @@ public class ScriptManager
 		if(scripts.contains(script))
 		{
 			scripts.remove(script);
+			refreshSubscriptions();
 		}
 	}
 
@@ -82,6 +87,7 @@ public class ScriptManager
 		}
 		Script s = new Script(f.getName(), DigestUtils.sha384Hex(cont), cont);
 		this.scripts.add(s);
+		refreshSubscriptions();
 		return s;
 	}
 
@@ -101,6 +107,30 @@ public class ScriptManager
 		this.failedscripts.add(s);
 	}
 
+	/**
+	 * Rebuilds the set of events any script has a handler for.
+	 * Called whenever a script is loaded, reloaded or removed or registers a handler.
+	 * Synchronized, so a set built by a slower call on another thread can't replace a newer one.
+	 */
+	public synchronized void refreshSubscriptions()
+	{
+		final HashSet<String> events = new HashSet<>();
+		for(Script script : scripts)
+		{
+			events.addAll(script.events.keySet());
+		}
+		subscribedEvents = events;
+	}
+
+	/**
+	 * @param event Name of the event in upper case
+	 * @return Whether any script has a handler for the given event.
+	 */
+	public boolean isSubscribed(@NotNull final String event)
+	{
+		return subscribedEvents.contains(event);
+	}
+
 	@NotNull
 	public void fireEvent(@NotNull final String event)
 	{
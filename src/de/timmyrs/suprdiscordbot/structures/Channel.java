@@ -3,9 +3,13 @@ package de.timmyrs.suprdiscordbot.structures;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.annotations.SerializedName;
 import de.timmyrs.suprdiscordbot.Configuration;
 import de.timmyrs.suprdiscordbot.Main;
 import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
+import de.timmyrs.suprdiscordbot.apis.MessageCache;
+
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Channel Structure.
@@ -16,10 +20,7 @@ import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class Channel extends Structure
 {
-	/**
-	 * The ID of this channel.
-	 */
-	public String id;
+	private long id;
 	/**
 	 * Name of the channel.
 	 *
@@ -69,11 +70,52 @@ public class Channel extends Structure
 	 * The user limit of this channel. Guild- &amp; Voice-only.
 	 */
 	public int user_limit;
+	@SerializedName("guild_id")
+	private long guildId;
+
 	/**
-	 * The ID of the guild this channel is part of.
-	 * Use {@link Member#getGuild()} to get a {@link Guild} object.
+	 * @return The ID of this channel.
+	 */
+	public String getId()
+	{
+		return Long.toString(id);
+	}
+
+	public long getIdLong()
+	{
+		return id;
+	}
+
+	/**
+	 * Use {@link Channel#getGuild()} to get a {@link Guild} object.
+	 *
+	 * @return The ID of the guild this channel is part of or null if it is not part of a guild.
+	 */
+	public String getGuildId()
+	{
+		return guildId == 0 ? null : Long.toString(guildId);
+	}
+
+	/**
+	 * Scripts read this as <code>channel.guild_id</code>.
+	 * Use {@link Channel#getGuild()} to get a {@link Guild} object.
+	 *
+	 * @return The ID of the guild this channel is part of or null if it is not part of a guild.
 	 */
-	public String guild_id;
+	public String getGuild_id()
+	{
+		return getGuildId();
+	}
+
+	public long getGuildIdLong()
+	{
+		return guildId;
+	}
+
+	void setGuildId(long id)
+	{
+		guildId = id;
+	}
 
 	/**
 	 * @return {@link Configuration} object.
@@ -113,7 +155,7 @@ public class Channel extends Structure
 	{
 		if(this.isPartOfGuild())
 		{
-			return Main.discordAPI.getGuild(guild_id);
+			return Main.discordAPI.getGuild(getGuildIdLong());
 		}
 		return null;
 	}
@@ -124,6 +166,11 @@ public class Channel extends Structure
 	 */
 	public Message getMessage(String id)
 	{
+		final Message m = MessageCache.get(this.id, snowflake(id));
+		if(m != null)
+		{
+			return m;
+		}
 		return (Message) DiscordAPI.request("GET", "/channels/" + this.id + "/messages/" + id, new Message());
 	}
 
@@ -137,6 +184,17 @@ public class Channel extends Structure
 		{
 			count = 100;
 		}
+		if(arg.equals(""))
+		{
+			final Message[] cached = MessageCache.getRecent(id, count);
+			if(cached != null)
+			{
+				return cached;
+			}
+			final Message[] messages = (Message[]) DiscordAPI.request("GET", "/channels/" + id + "/messages", "limit=" + count, new Message());
+			MessageCache.seed(id, messages);
+			return messages;
+		}
 		return (Message[]) DiscordAPI.request("GET", "/channels/" + id + "/messages", "limit=" + count + arg, new Message());
 	}
 
@@ -254,7 +312,7 @@ public class Channel extends Structure
 	{
 		for(Overwrite o : permission_overwrites)
 		{
-			if(o.type.equals("member") && o.id.equals(u.id))
+			if(o.type.equals("member") && o.id.equals(u.getId()))
 			{
 				return o;
 			}
@@ -271,7 +329,7 @@ public class Channel extends Structure
 	{
 		for(Overwrite o : permission_overwrites)
 		{
-			if(o.type.equals("member") && o.id.equals(r.id))
+			if(o.type.equals("role") && o.id.equals(r.getId()))
 			{
 				return o;
 			}
@@ -339,6 +397,63 @@ public class Channel extends Structure
 		return (Message) DiscordAPI.request("POST", "/channels/" + id + "/messages", json.toString(), new Message());
 	}
 
+	/**
+	 * Sends a message without waiting for it to be sent.
+	 * <p>
+	 * <code>
+	 * channel.sendMessageAsync("Pong!").thenAccept(function(msg)<br>
+	 * {<br>
+	 * &nbsp;&nbsp;&nbsp;&nbsp;msg.addReaction("🏓");<br>
+	 * });
+	 * </code>
+	 *
+	 * @param content Content of the message to be sent
+	 * @return A future which is completed with the newly sent message.
+	 */
+	public CompletableFuture<Message> sendMessageAsync(String content)
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("content", content);
+		return DiscordAPI.requestAsync("POST", "/channels/" + id + "/messages", json.toString(), new Message()).thenApply(res->(Message) res);
+	}
+
+	/**
+	 * @param content Content of the message to be sent
+	 * @param tts     Whether this is a TTS message or not
+	 * @return A future which is completed with the newly sent message.
+	 */
+	public CompletableFuture<Message> sendMessageAsync(String content, boolean tts)
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("content", content);
+		json.addProperty("tts", tts);
+		return DiscordAPI.requestAsync("POST", "/channels/" + id + "/messages", json.toString(), new Message()).thenApply(res->(Message) res);
+	}
+
+	/**
+	 * @param embed {@link Embed} object to be sent
+	 * @return A future which is completed with the newly sent message.
+	 * @see DiscordAPI#createEmbed()
+	 */
+	public CompletableFuture<Message> sendMessageAsync(Embed embed)
+	{
+		return sendMessageAsync("", embed);
+	}
+
+	/**
+	 * @param content Content of the message to be sent
+	 * @param embed   {@link Embed} object to be sent
+	 * @return A future which is completed with the newly sent message.
+	 * @see DiscordAPI#createEmbed()
+	 */
+	public CompletableFuture<Message> sendMessageAsync(String content, Embed embed)
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("content", content);
+		json.add("embed", Main.gson.toJsonTree(embed));
+		return DiscordAPI.requestAsync("POST", "/channels/" + id + "/messages", json.toString(), new Message()).thenApply(res->(Message) res);
+	}
+
 	/**
 	 * Returns the Handle of this channel to be used in a message
 	 *
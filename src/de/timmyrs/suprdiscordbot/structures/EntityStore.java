@@ -0,0 +1,96 @@
+package de.timmyrs.suprdiscordbot.structures;
+
+import de.timmyrs.suprdiscordbot.LongMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps entities of a {@link Guild} by their ID, so they can be looked up, added and removed in constant time,
+ * while the array handed out to scripts is only rebuilt when it is read after a change.
+ * Safe to read from any thread while the gateway writes to it.
+ *
+ * @param <T> Type of the entities
+ */
+class EntityStore<T>
+{
+	private final LongMap<T> entities;
+	private final AtomicInteger version = new AtomicInteger();
+	private final ToLongFunction<T> idOf;
+	private final IntFunction<T[]> newArray;
+	private volatile Snapshot<T> snapshot;
+
+	EntityStore(T[] initial, ToLongFunction<T> idOf, IntFunction<T[]> newArray)
+	{
+		this.idOf = idOf;
+		this.newArray = newArray;
+		entities = new LongMap<>(initial == null ? 0 : initial.length);
+		if(initial != null)
+		{
+			for(T entity : initial)
+			{
+				entities.put(idOf.applyAsLong(entity), entity);
+			}
+		}
+	}
+
+	T get(long id)
+	{
+		return entities.get(id);
+	}
+
+	/**
+	 * @param entity Entity to be added or to replace the entity with the same ID
+	 * @return The replaced entity or null.
+	 */
+	T put(T entity)
+	{
+		final T previous = entities.put(idOf.applyAsLong(entity), entity);
+		version.incrementAndGet();
+		return previous;
+	}
+
+	T remove(long id)
+	{
+		final T previous = entities.remove(id);
+		if(previous != null)
+		{
+			version.incrementAndGet();
+		}
+		return previous;
+	}
+
+	int size()
+	{
+		return entities.size();
+	}
+
+	/**
+	 * @return All entities. The array is shared until the next change, so it must not be modified.
+	 */
+	T[] toArray()
+	{
+		final Snapshot<T> s = snapshot;
+		final int v = version.get();
+		if(s != null && s.version == v)
+		{
+			return s.array;
+		}
+		final T[] array = entities.values().toArray(newArray.apply(0));
+		snapshot = new Snapshot<>(v, array);
+		return array;
+	}
+
+	private static class Snapshot<T>
+	{
+		final int version;
+		final T[] array;
+
+		Snapshot(int version, T[] array)
+		{
+			this.version = version;
+			this.array = array;
+		}
+	}
+}
@@ -2,12 +2,16 @@ package de.timmyrs.suprdiscordbot.structures;
 
 import com.google.gson.JsonObject;
 import de.timmyrs.suprdiscordbot.Configuration;
+import de.timmyrs.suprdiscordbot.LongMap;
 import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.apis.CachePolicy;
 import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
+import de.timmyrs.suprdiscordbot.apis.EntityRegistry;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Guild Structure.
@@ -18,10 +22,7 @@ import java.util.ArrayList;
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class Guild extends Structure
 {
-	/**
-	 * Guild ID.
-	 */
-	public String id;
+	private long id;
 	/**
 	 * Guild Name.
 	 * 2-100 chars.
@@ -64,7 +65,7 @@ public class Guild extends Structure
 	 *
 	 * @see Guild#getRoles()
 	 */
-	public Role[] roles;
+	public volatile Role[] roles;
 	/**
 	 * Array of {@link Emoji} objects.
 	 */
@@ -96,18 +97,139 @@ public class Guild extends Structure
 	 * Array of {@link VoiceState} objects.
 	 */
 	public VoiceState[] voice_states;
+	private Member[] members;
+	private Presence[] presences;
+	private String owner_id;
+	private String afk_channel_id;
+	private String embed_channel_id;
+	private volatile Channel[] channels;
+	private transient CompletableFuture<Guild> membersLoaded;
+	private transient volatile EntityStore<Member> memberStore;
+	private transient volatile EntityStore<Presence> presenceStore;
+	private transient volatile LongMap<Role> roleTable;
+	private transient int nextRoleOrdinal;
+	private final transient LongMap<LongMap<Member>> roleMembers = new LongMap<>();
 	/**
-	 * Array of {@link Member} objects.
+	 * Incremented whenever roles or permission overwrites change, invalidating the permissions cached by {@link Member#getPermissions(Channel)}.
 	 */
-	public Member[] members;
+	transient volatile int permissionVersion;
+
 	/**
-	 * Array of {@link Presence} objects.
+	 * Returns how the members of large guilds are loaded, as set by <code>memberLoading</code> in the <code>config.json</code>:
+	 * <ul>
+	 * <li><code>eager</code> requests all members as soon as the guild is available, batched per shard, if the {@link CachePolicy} caches all members.</li>
+	 * <li><code>on-demand</code> requests all members once a member isn't found. This is the default.</li>
+	 * <li><code>never</code> only loads members if {@link Guild#requestMembers()} is called.</li>
+	 * </ul>
+	 *
+	 * @return The member loading policy.
 	 */
-	public Presence[] presences;
-	private String owner_id;
-	private String afk_channel_id;
-	private String embed_channel_id;
-	private Channel[] channels;
+	public static String getMemberLoading()
+	{
+		final String policy = Main.configuration.getString("memberLoading");
+		return policy.equals("") ? "on-demand" : policy;
+	}
+
+	/**
+	 * @return Guild ID.
+	 */
+	public String getId()
+	{
+		return Long.toString(id);
+	}
+
+	public long getIdLong()
+	{
+		return id;
+	}
+
+	/**
+	 * @return ID of the User who owns this Guild.
+	 */
+	public String getOwnerId()
+	{
+		return owner_id;
+	}
+
+	/**
+	 * Sets the guild of the channels, members, presences and voice states of this guild and links their users to the shared user objects.
+	 * Then drops what the {@link CachePolicy} doesn't cache.
+	 * Called once the guild is received from the gateway.
+	 */
+	public void linkChildren()
+	{
+		for(Channel channel : getChannels())
+		{
+			channel.setGuildId(id);
+		}
+		for(Member member : getMembers())
+		{
+			member.setGuildId(id);
+			member.user = EntityRegistry.internUser(member.user);
+		}
+		for(Presence presence : getPresences())
+		{
+			presence.setGuildId(id);
+			presence.user = EntityRegistry.internUser(presence.user);
+		}
+		final EntityStore<Member> store = memberStore();
+		for(Member member : store.toArray())
+		{
+			if(keepMember(member))
+			{
+				indexMember(member, null);
+			}
+			else
+			{
+				store.remove(member.user.getIdLong());
+			}
+		}
+		if(!CachePolicy.presences)
+		{
+			synchronized(this)
+			{
+				presenceStore = new EntityStore<>(null, p->p.user.getIdLong(), Presence[]::new);
+				presences = null;
+			}
+		}
+		if(!CachePolicy.emojis)
+		{
+			emojis = new Emoji[0];
+		}
+		if(!CachePolicy.voiceStates)
+		{
+			voice_states = new VoiceState[0];
+		}
+		else if(voice_states != null)
+		{
+			for(VoiceState vs : voice_states)
+			{
+				vs.guild_id = getId();
+			}
+		}
+	}
+
+	/**
+	 * @param m Member
+	 * @return Whether the {@link CachePolicy} caches the given member.
+	 */
+	private boolean keepMember(Member m)
+	{
+		if(Main.discordAPI.user != null && m.user.getIdLong() == Main.discordAPI.user.getIdLong())
+		{
+			return true;
+		}
+		switch(CachePolicy.members)
+		{
+			case "none":
+				return false;
+			case "online":
+				final Presence p = getPresence(m.user.getIdLong());
+				return p != null && !p.status.equals("offline");
+			default:
+				return true;
+		}
+	}
 
 	/**
 	 * @return {@link Configuration}.
@@ -192,11 +314,20 @@ public class Guild extends Structure
 	 */
 	public Role[] getRoles()
 	{
-		if(this.roles == null)
+		Role[] roles = this.roles;
+		if(roles == null)
 		{
-			this.roles = (Role[]) DiscordAPI.request("GET", "/guilds/" + this.id + "/roles", new Role());
+			final Role[] fetched = (Role[]) DiscordAPI.request("GET", "/guilds/" + this.id + "/roles", new Role());
+			synchronized(this)
+			{
+				if(this.roles == null && fetched != null)
+				{
+					this.roles = fetched;
+				}
+				roles = this.roles;
+			}
 		}
-		return this.roles;
+		return roles == null ? new Role[0] : roles;
 	}
 
 	/**
@@ -205,14 +336,154 @@ public class Guild extends Structure
 	 */
 	public Role getRole(String id)
 	{
+		return getRole(snowflake(id));
+	}
+
+	/**
+	 * @param id Role ID
+	 * @return {@link Role} object with given ID or null if not found.
+	 */
+	public Role getRole(long id)
+	{
+		return roleTable().get(id);
+	}
+
+	/**
+	 * Adds a role or replaces the role with the same ID.
+	 *
+	 * @param role {@link Role} object
+	 */
+	public synchronized void addRole(Role role)
+	{
+		final LongMap<Role> table = roleTable();
+		final Role previous = table.get(role.getIdLong());
+		role.ordinal = (previous == null ? nextRoleOrdinal++ : previous.ordinal);
+		role.guild_id = id;
+		table.put(role.getIdLong(), role);
+		permissionVersion++;
+		final Role[] roles = getRoles();
+		final ArrayList<Role> roleArrayList = new ArrayList<>(roles.length + 1);
 		for(Role r : roles)
 		{
-			if(r.id.equals(id))
+			if(r.getIdLong() != role.getIdLong())
 			{
-				return r;
+				roleArrayList.add(r);
+			}
+		}
+		roleArrayList.add(role);
+		this.roles = roleArrayList.toArray(new Role[roleArrayList.size()]);
+	}
+
+	/**
+	 * @param id ID of the role to be removed
+	 */
+	public synchronized void removeRole(long id)
+	{
+		roleTable().remove(id);
+		roleMembers.remove(id);
+		permissionVersion++;
+		final Role[] roles = getRoles();
+		final ArrayList<Role> roleArrayList = new ArrayList<>(roles.length);
+		for(Role r : roles)
+		{
+			if(r.getIdLong() != id)
+			{
+				roleArrayList.add(r);
+			}
+		}
+		this.roles = roleArrayList.toArray(new Role[roleArrayList.size()]);
+	}
+
+	/**
+	 * @param role {@link Role} object
+	 * @return Array of {@link Member} objects which have the given role.
+	 */
+	public Member[] getMembersWithRole(Role role)
+	{
+		if(role.getIdLong() == id)
+		{
+			return getMembers();
+		}
+		final LongMap<Member> members = roleMembers.get(role.getIdLong());
+		if(members == null)
+		{
+			return new Member[0];
+		}
+		return members.values().toArray(new Member[0]);
+	}
+
+	/**
+	 * Assigns every role an ordinal, so the roles of a member can be held as a bitset, see {@link Member#hasRole(Role)}.
+	 * Ordinals are never reused, so the bitsets stay valid when roles are added or removed.
+	 */
+	private LongMap<Role> roleTable()
+	{
+		LongMap<Role> table = roleTable;
+		if(table == null)
+		{
+			synchronized(this)
+			{
+				if(roleTable == null)
+				{
+					final Role[] roles = getRoles();
+					final LongMap<Role> t = new LongMap<>(roles.length);
+					for(Role r : roles)
+					{
+						r.ordinal = nextRoleOrdinal++;
+						r.guild_id = id;
+						t.put(r.getIdLong(), r);
+					}
+					roleTable = t;
+				}
+				table = roleTable;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Sets the role bitset of a member and adds it to the members of its roles.
+	 *
+	 * @param m        Member which was added to the cache
+	 * @param previous Member it replaced or null
+	 */
+	private void indexMember(Member m, Member previous)
+	{
+		final LongMap<Role> table = roleTable();
+		final long userId = m.user.getIdLong();
+		final long[] roleIds = m.getRoleIDsLong();
+		final long[] bits = new long[(nextRoleOrdinal >> 6) + 1];
+		for(long rid : roleIds)
+		{
+			final Role r = table.get(rid);
+			if(r != null && (r.ordinal >> 6) < bits.length)
+			{
+				bits[r.ordinal >> 6] |= 1L << r.ordinal;
+			}
+			LongMap<Member> members = roleMembers.get(rid);
+			if(members == null)
+			{
+				members = roleMembers.putIfAbsent(rid, new LongMap<>());
+			}
+			members.put(userId, m);
+		}
+		m.roleBits = bits;
+		if(previous != null && previous != m)
+		{
+			unindexMember(previous);
+		}
+	}
+
+	private void unindexMember(Member m)
+	{
+		for(long rid : m.getRoleIDsLong())
+		{
+			final LongMap<Member> members = roleMembers.get(rid);
+			if(members != null)
+			{
+				members.remove(m.user.getIdLong(), m);
 			}
 		}
-		return null;
 	}
 
 	/**
@@ -233,19 +504,181 @@ public class Guild extends Structure
 	}
 
 	/**
+	 * Large guilds only send some of their members, see {@link Guild#requestMembers()}.
+	 *
+	 * @return Array of {@link Member} objects.
+	 */
+	public Member[] getMembers()
+	{
+		return memberStore().toArray();
+	}
+
+	/**
+	 * @return Array of {@link Presence} objects.
+	 */
+	public Presence[] getPresences()
+	{
+		return presenceStore().toArray();
+	}
+
+	private EntityStore<Member> memberStore()
+	{
+		EntityStore<Member> store = memberStore;
+		if(store == null)
+		{
+			synchronized(this)
+			{
+				if(memberStore == null)
+				{
+					memberStore = new EntityStore<>(members, m->m.user.getIdLong(), Member[]::new);
+					members = null;
+				}
+				store = memberStore;
+			}
+		}
+		return store;
+	}
+
+	private EntityStore<Presence> presenceStore()
+	{
+		EntityStore<Presence> store = presenceStore;
+		if(store == null)
+		{
+			synchronized(this)
+			{
+				if(presenceStore == null)
+				{
+					presenceStore = new EntityStore<>(presences, p->p.user.getIdLong(), Presence[]::new);
+					presences = null;
+				}
+				store = presenceStore;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * If the member is not found and the guild's members aren't all loaded, they are requested as set by {@link Guild#getMemberLoading()}.
+	 * If the {@link CachePolicy} doesn't cache all members, the member is requested from the REST API instead.
+	 *
 	 * @param id Member ID
 	 * @return {@link Member} object with given ID or null if not found.
 	 */
 	public Member getMember(String id)
 	{
-		for(Member m : members)
+		return getMember(snowflake(id));
+	}
+
+	/**
+	 * @param id Member ID
+	 * @return {@link Member} object with given ID or null if not found.
+	 * @see Guild#getMember(String)
+	 */
+	public Member getMember(long id)
+	{
+		Member m = getLoadedMember(id);
+		if(m == null && id != 0)
 		{
-			if(m.user.id.equals(id))
+			if(!CachePolicy.cachesAllMembers())
+			{
+				m = (Member) DiscordAPI.request("/guilds/" + this.id + "/members/" + id, new Member());
+				if(m != null)
+				{
+					m.setGuildId(this.id);
+					m.user = EntityRegistry.internUser(m.user);
+				}
+			}
+			else if(getMemberLoading().equals("on-demand"))
 			{
-				return m;
+				requestMembers();
 			}
 		}
-		return null;
+		return m;
+	}
+
+	/**
+	 * @param id Member ID
+	 * @return {@link Member} object with given ID or null if it is not loaded.
+	 */
+	public Member getLoadedMember(String id)
+	{
+		return getLoadedMember(snowflake(id));
+	}
+
+	/**
+	 * @param id Member ID
+	 * @return {@link Member} object with given ID or null if it is not loaded.
+	 */
+	public Member getLoadedMember(long id)
+	{
+		return memberStore().get(id);
+	}
+
+	/**
+	 * @return Whether all members of this guild are loaded.
+	 */
+	public boolean hasAllMembers()
+	{
+		return memberStore().size() >= member_count;
+	}
+
+	/**
+	 * Requests all members of this guild, unless they are already loaded or being loaded.
+	 * The members are added as they arrive, so {@link Guild#getMembers()} may be incomplete until the returned future is completed.
+	 * <p>
+	 * <code>
+	 * guild.requestMembers().thenAccept(function(g){ console.log(g.getMembers().length); });
+	 * </code>
+	 *
+	 * @return A future which is completed with this guild once all members are loaded.
+	 */
+	public synchronized CompletableFuture<Guild> requestMembers()
+	{
+		if(membersLoaded == null)
+		{
+			membersLoaded = new CompletableFuture<>();
+			if(hasAllMembers())
+			{
+				membersLoaded.complete(this);
+			}
+			else if(!Main.shardManager.requestMembers(id))
+			{
+				final CompletableFuture<Guild> failed = membersLoaded;
+				membersLoaded = null;
+				failed.completeExceptionally(new IllegalStateException("The shard of guild " + id + " is run by another process"));
+				return failed;
+			}
+		}
+		return membersLoaded;
+	}
+
+	/**
+	 * Adds a chunk of members.
+	 *
+	 * @param chunk Chunk sent in response to {@link Guild#requestMembers()}
+	 * @return Whether this was the last chunk, so all members are loaded now.
+	 */
+	public synchronized boolean addMemberChunk(GuildMembersChunk chunk)
+	{
+		final EntityStore<Member> store = memberStore();
+		for(Member m : chunk.members)
+		{
+			m.setGuildId(this.id);
+			m.user = EntityRegistry.internUser(m.user);
+			if(keepMember(m))
+			{
+				indexMember(m, store.put(m));
+			}
+		}
+		if(chunk.chunk_index == chunk.chunk_count - 1 || hasAllMembers())
+		{
+			if(membersLoaded == null)
+			{
+				membersLoaded = new CompletableFuture<>();
+			}
+			return membersLoaded.complete(this);
+		}
+		return false;
 	}
 
 	/**
@@ -254,7 +687,7 @@ public class Guild extends Structure
 	 */
 	public Member getMember(User u)
 	{
-		return getMember(u.id);
+		return getMember(u.getIdLong());
 	}
 
 	/**
@@ -268,31 +701,21 @@ public class Guild extends Structure
 
 	public void addMember(Member member)
 	{
-		ArrayList<Member> memberArrayList = new ArrayList<>();
-		for(Member m : members)
+		member.user = EntityRegistry.internUser(member.user);
+		if(CachePolicy.members.equals("none") && !keepMember(member))
 		{
-			if(!m.user.id.equals(member.user.id))
-			{
-				memberArrayList.add(m);
-			}
+			return;
 		}
-		memberArrayList.add(member);
-		Member[] tmp = member.getArray(memberArrayList.size());
-		members = memberArrayList.toArray(tmp);
+		indexMember(member, memberStore().put(member));
 	}
 
-	public void removeMember(String id)
+	public void removeMember(long id)
 	{
-		ArrayList<Member> memberArrayList = new ArrayList<>();
-		for(Member m : members)
+		final Member removed = memberStore().remove(id);
+		if(removed != null)
 		{
-			if(!m.user.id.equals(id))
-			{
-				memberArrayList.add(m);
-			}
+			unindexMember(removed);
 		}
-		Member[] tmp = new Member[memberArrayList.size()];
-		members = memberArrayList.toArray(tmp);
 	}
 
 	/**
@@ -301,58 +724,70 @@ public class Guild extends Structure
 	 */
 	public Presence getPresence(String id)
 	{
-		for(Presence p : presences)
-		{
-			if(p.user.id.equals(id))
-			{
-				return p;
-			}
-		}
-		return null;
+		return getPresence(snowflake(id));
+	}
+
+	/**
+	 * @param id User ID
+	 * @return {@link Presence} object with given ID.
+	 */
+	public Presence getPresence(long id)
+	{
+		return presenceStore().get(id);
 	}
 
 	public void addPresence(Presence presence)
 	{
-		ArrayList<Presence> presencesArrayList = new ArrayList<>();
-		for(Presence p : presences)
+		if(!CachePolicy.presences)
 		{
-			if(!p.equals(presence))
-			{
-				presencesArrayList.add(p);
-			}
+			return;
 		}
-		presencesArrayList.add(presence);
-		Presence[] tmp = presence.getArray(presencesArrayList.size());
-		presences = presencesArrayList.toArray(tmp);
+		// The member's roles are only needed until the member is cached.
+		presence.roles = null;
+		presenceStore().put(presence);
+		EntityRegistry.addPresence(presence.user.getIdLong(), id);
 	}
 
-	public void removePresence(String id)
+	public void removePresence(long id)
 	{
-		ArrayList<Presence> presencesArrayList = new ArrayList<>();
-		for(Presence p : presences)
+		if(presenceStore().remove(id) != null)
 		{
-			if(!p.user.id.equals(id))
-			{
-				presencesArrayList.add(p);
-			}
+			EntityRegistry.removePresence(id, this.id);
 		}
-		Presence[] tmp = new Presence[presencesArrayList.size()];
-		presences = presencesArrayList.toArray(tmp);
 	}
 
-	public void addChannel(Channel channel)
+	public synchronized void addChannel(Channel channel)
 	{
 		ArrayList<Channel> channelsArrayList = new ArrayList<>();
-		for(Channel c : channels)
+		boolean replaced = false;
+		for(Channel c : getChannels())
 		{
 			if(!c.equals(channel))
 			{
 				channelsArrayList.add(c);
 			}
+			else if(c != channel)
+			{
+				replaced = true;
+			}
 		}
 		channelsArrayList.add(channel);
 		Channel[] tmp = new Channel[channelsArrayList.size()];
 		channels = channelsArrayList.toArray(tmp);
+		channel.setGuildId(this.id);
+		EntityRegistry.addChannel(channel);
+		if(replaced)
+		{
+			invalidatePermissions();
+		}
+	}
+
+	/**
+	 * Drops the permissions cached by {@link Member#getPermissions(Channel)}, e.g. after the permission overwrites of a channel changed.
+	 */
+	public void invalidatePermissions()
+	{
+		permissionVersion++;
 	}
 
 	/**
@@ -361,7 +796,7 @@ public class Guild extends Structure
 	 */
 	public Presence getPresence(User u)
 	{
-		return getPresence(u.id);
+		return getPresence(u.getIdLong());
 	}
 
 	/**
@@ -370,7 +805,7 @@ public class Guild extends Structure
 	 */
 	public Presence getPresence(Member m)
 	{
-		return getPresence(m.user.id);
+		return getPresence(m.user.getIdLong());
 	}
 
 	/**
@@ -378,11 +813,25 @@ public class Guild extends Structure
 	 */
 	public Channel[] getChannels()
 	{
+		Channel[] channels = this.channels;
 		if(channels == null)
 		{
-			channels = (Channel[]) DiscordAPI.request("/guilds/" + this.id + "/channels", new Channel());
+			final Channel[] fetched = (Channel[]) DiscordAPI.request("/guilds/" + this.id + "/channels", new Channel());
+			synchronized(this)
+			{
+				if(this.channels == null && fetched != null)
+				{
+					for(Channel c : fetched)
+					{
+						c.setGuildId(this.id);
+						EntityRegistry.addChannel(c);
+					}
+					this.channels = fetched;
+				}
+				channels = this.channels;
+			}
 		}
-		return channels;
+		return channels == null ? new Channel[0] : channels;
 	}
 
 	/**
@@ -426,10 +875,19 @@ public class Guild extends Structure
 	 * @return {@link Channel} object with the given ID.
 	 */
 	public Channel getChannel(String id)
+	{
+		return getChannel(snowflake(id));
+	}
+
+	/**
+	 * @param id {@link Channel} ID
+	 * @return {@link Channel} object with the given ID.
+	 */
+	public Channel getChannel(long id)
 	{
 		for(Channel c : getChannels())
 		{
-			if(c.id.equals(id))
+			if(c.getIdLong() == id)
 			{
 				return c;
 			}
@@ -0,0 +1,36 @@
+package de.timmyrs.suprdiscordbot.structures;
+
+/**
+ * A chunk of members sent in response to {@link Guild#requestMembers()}.
+ *
+ * @author timmyRS
+ */
+public class GuildMembersChunk extends Structure
+{
+	/**
+	 * ID of the Guild the members are part of.
+	 */
+	public String guild_id;
+	/**
+	 * Array of {@link Member} objects.
+	 */
+	public Member[] members;
+	/**
+	 * Index of this chunk.
+	 */
+	public int chunk_index;
+	/**
+	 * Total number of chunks the response consists of.
+	 */
+	public int chunk_count;
+
+	public GuildMembersChunk[] getArray(int size)
+	{
+		return new GuildMembersChunk[size];
+	}
+
+	public String toString()
+	{
+		return "{GuildMembersChunk #" + guild_id + " " + chunk_index + "/" + chunk_count + "}";
+	}
+}
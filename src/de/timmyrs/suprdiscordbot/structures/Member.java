@@ -1,16 +1,22 @@
 package de.timmyrs.suprdiscordbot.structures;
 
+import com.google.gson.annotations.SerializedName;
+import de.timmyrs.suprdiscordbot.LongMap;
 import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.apis.PermissionAPI;
+
+import java.util.Arrays;
 
 /**
  * Member Structure.
- * You can retrieve an array of member structures using {@link Guild#members}.
+ * You can retrieve an array of member structures using {@link Guild#getMembers()}.
  *
  * @author timmyRS
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class Member extends Structure
 {
+	private static final long[] noRoles = new long[0];
 	/**
 	 * Correlating user object.
 	 */
@@ -27,15 +33,13 @@ public class Member extends Structure
 	 * Is the user muted?
 	 */
 	public boolean mute;
-	/**
-	 * ID of the Guild this Member is part of.
-	 * Use {@link Member#getGuild()} to get the {@link Guild} object.
-	 */
-	public String guild_id;
-	/**
-	 * Use {@link Member#getRoles()} to get an array of {@link Role} objects this member is a part of.
-	 */
-	public String[] roles;
+	@SerializedName("guild_id")
+	private long guildId;
+	@SerializedName("roles")
+	private long[] roleIds;
+	transient long[] roleBits;
+	private transient volatile CachedPermissions guildPermissions;
+	private transient volatile LongMap<CachedPermissions> channelPermissions;
 	/**
 	 * Nickname of this Member.
 	 * Use {@link Member#getName()} to get the user's name.
@@ -50,12 +54,43 @@ public class Member extends Structure
 		return (nick == null ? user.username : nick);
 	}
 
+	/**
+	 * Use {@link Member#getGuild()} to get the {@link Guild} object.
+	 *
+	 * @return ID of the Guild this Member is part of.
+	 */
+	public String getGuildId()
+	{
+		return guildId == 0 ? null : Long.toString(guildId);
+	}
+
+	/**
+	 * Scripts read this as <code>member.guild_id</code>.
+	 * Use {@link Member#getGuild()} to get the {@link Guild} object.
+	 *
+	 * @return ID of the Guild this Member is part of.
+	 */
+	public String getGuild_id()
+	{
+		return getGuildId();
+	}
+
+	public long getGuildIdLong()
+	{
+		return guildId;
+	}
+
+	void setGuildId(long id)
+	{
+		guildId = id;
+	}
+
 	/**
 	 * @return {@link Guild} this member is part of.
 	 */
 	public Guild getGuild()
 	{
-		return Main.discordAPI.getGuild(guild_id);
+		return Main.discordAPI.getGuild(getGuildIdLong());
 	}
 
 	/**
@@ -64,7 +99,26 @@ public class Member extends Structure
 	 */
 	public String[] getRoleIDs()
 	{
-		return this.roles;
+		final long[] roles = getRoleIDsLong();
+		final String[] ids = new String[roles.length];
+		for(int i = 0; i < roles.length; i++)
+		{
+			ids[i] = Long.toString(roles[i]);
+		}
+		return ids;
+	}
+
+	/**
+	 * @return List of IDs of Roles the Member is part of. Must not be modified.
+	 */
+	public long[] getRoleIDsLong()
+	{
+		return roleIds == null ? noRoles : roleIds;
+	}
+
+	void setRoleIDs(long[] roleIds)
+	{
+		this.roleIds = roleIds;
 	}
 
 	/**
@@ -73,14 +127,18 @@ public class Member extends Structure
 	public Role[] getRoles()
 	{
 		Guild g = getGuild();
-		Role[] roleArr = new Role[this.roles.length];
+		final long[] roles = getRoleIDsLong();
+		Role[] roleArr = new Role[roles.length];
 		int i = 0;
-		for(String rid : this.roles)
+		for(long rid : roles)
 		{
 			Role r = g.getRole(rid);
-			roleArr[i++] = r;
+			if(r != null)
+			{
+				roleArr[i++] = r;
+			}
 		}
-		return roleArr;
+		return i == roleArr.length ? roleArr : Arrays.copyOf(roleArr, i);
 	}
 
 	/**
@@ -89,9 +147,18 @@ public class Member extends Structure
 	 */
 	public boolean hasRole(Role role)
 	{
-		for(Role r : getRoles())
+		if(role.getIdLong() == getGuildIdLong())
 		{
-			if(role.equals(r))
+			return true;
+		}
+		final long[] bits = roleBits;
+		if(bits != null && role.ordinal >= 0 && role.guild_id == getGuildIdLong())
+		{
+			return (role.ordinal >> 6) < bits.length && (bits[role.ordinal >> 6] & (1L << role.ordinal)) != 0;
+		}
+		for(long rid : getRoleIDsLong())
+		{
+			if(rid == role.getIdLong())
 			{
 				return true;
 			}
@@ -147,12 +214,124 @@ public class Member extends Structure
 		return this.user.sendDM(content);
 	}
 
+	/**
+	 * @return Permission bit set of this Member in its Guild, computed from the permissions of @everyone and its roles.
+	 * @see de.timmyrs.suprdiscordbot.apis.PermissionAPI#bitsToStrings(int)
+	 */
+	public int getPermissions()
+	{
+		final Guild g = getGuild();
+		return g == null ? 0 : getPermissions(g, null);
+	}
+
+	/**
+	 * @param c {@link Channel} object
+	 * @return Permission bit set of this Member in the given Channel, after applying its permission overwrites.
+	 * @see de.timmyrs.suprdiscordbot.apis.PermissionAPI#allowsFor(int, int)
+	 */
+	public int getPermissions(Channel c)
+	{
+		final Guild g = getGuild();
+		return g == null || c.getGuildIdLong() != getGuildIdLong() ? 0 : getPermissions(g, c);
+	}
+
+	/**
+	 * Returns the cached permissions, unless roles or overwrites of the guild changed since they were computed.
+	 * Changes to the roles of this member replace the member object, which starts with an empty cache.
+	 */
+	private int getPermissions(Guild g, Channel c)
+	{
+		final int version = g.permissionVersion;
+		if(c == null)
+		{
+			CachedPermissions cached = guildPermissions;
+			if(cached == null || cached.version != version)
+			{
+				guildPermissions = cached = new CachedPermissions(version, computePermissions(g));
+			}
+			return cached.bits;
+		}
+		LongMap<CachedPermissions> cache = channelPermissions;
+		if(cache == null)
+		{
+			channelPermissions = cache = new LongMap<>(4);
+		}
+		CachedPermissions cached = cache.get(c.getIdLong());
+		if(cached == null || cached.version != version)
+		{
+			cached = new CachedPermissions(version, computePermissions(g, c));
+			cache.put(c.getIdLong(), cached);
+		}
+		return cached.bits;
+	}
+
+	private int computePermissions(Guild g)
+	{
+		if(user.getId().equals(g.getOwnerId()))
+		{
+			return PermissionAPI.ALL;
+		}
+		final Role everyone = g.getRole(getGuildIdLong());
+		int bits = (everyone == null ? 0 : everyone.permissions);
+		for(long rid : getRoleIDsLong())
+		{
+			final Role r = g.getRole(rid);
+			if(r != null)
+			{
+				bits |= r.permissions;
+			}
+		}
+		return (bits & Main.permisisonAPI.ADMINISTRATOR) == 0 ? bits : PermissionAPI.ALL;
+	}
+
+	private int computePermissions(Guild g, Channel c)
+	{
+		int bits = getPermissions(g, null);
+		if(bits == PermissionAPI.ALL || c.permission_overwrites == null)
+		{
+			return bits;
+		}
+		int allow = 0;
+		int deny = 0;
+		Overwrite own = null;
+		for(Overwrite o : c.permission_overwrites)
+		{
+			if(o.type.equals("role"))
+			{
+				final long rid = snowflake(o.id);
+				if(rid == getGuildIdLong())
+				{
+					bits = (bits & ~o.deny) | o.allow;
+				}
+				else
+				{
+					final Role r = g.getRole(rid);
+					if(r != null && hasRole(r))
+					{
+						allow |= o.allow;
+						deny |= o.deny;
+					}
+				}
+			}
+			else if(snowflake(o.id) == user.getIdLong())
+			{
+				own = o;
+			}
+		}
+		bits = (bits & ~deny) | allow;
+		if(own != null)
+		{
+			bits = (bits & ~own.deny) | own.allow;
+		}
+		return bits;
+	}
+
 	/**
 	 * @return {@link Presence} object this member correlates to.
 	 */
 	public Presence getPresence()
 	{
-		return getGuild().getPresence(user.id);
+		return getGuild().getPresence(user.getIdLong());
 	}
 
 	public Member[] getArray(int size)
@@ -164,4 +343,16 @@ public class Member extends Structure
 	{
 		return "{Member " + this.user.toString() + " \"" + this.getName() + "\"}";
 	}
+
+	private static class CachedPermissions
+	{
+		final int version;
+		final int bits;
+
+		CachedPermissions(int version, int bits)
+		{
+			this.version = version;
+			this.bits = bits;
+		}
+	}
 }
@@ -1,12 +1,14 @@
 package de.timmyrs.suprdiscordbot.structures;
 
 import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
 import de.timmyrs.suprdiscordbot.Main;
 import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
 
 import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Message Structure.
@@ -15,12 +17,9 @@ import java.text.SimpleDateFormat;
  * @author timmyRS
  */
 @SuppressWarnings({"WeakerAccess", "unused", "UnusedReturnValue"})
-public class Message extends Structure
+public class Message extends Structure implements Cloneable
 {
-	/**
-	 * ID of the message.
-	 */
-	public String id;
+	private long id;
 	/**
 	 * Use {@link Message#getAuthor()} to get the author of this message and {@link Member#user} to get the {@link User} object.
 	 */
@@ -49,10 +48,8 @@ public class Message extends Structure
 	 * Users specifically mentioned in the message.
 	 */
 	public User[] mentions;
-	/**
-	 * Roles specifically mentioned in this message.
-	 */
-	public String[] mention_roles;
+	@SerializedName("mention_roles")
+	private long[] mentionRoleIds;
 	/**
 	 * Any attached files.
 	 */
@@ -94,7 +91,113 @@ public class Message extends Structure
 	 */
 	public int type;
 	private Embed embed;
-	private String channel_id;
+	private long channel_id;
+	private transient Message previous;
+
+	/**
+	 * @return ID of the message or null if it was deleted.
+	 */
+	public String getId()
+	{
+		return id == 0 ? null : Long.toString(id);
+	}
+
+	public long getIdLong()
+	{
+		return id;
+	}
+
+	/**
+	 * @return IDs of the roles specifically mentioned in this message.
+	 */
+	public String[] getMentionRoleIDs()
+	{
+		if(mentionRoleIds == null)
+		{
+			return new String[0];
+		}
+		final String[] ids = new String[mentionRoleIds.length];
+		for(int i = 0; i < mentionRoleIds.length; i++)
+		{
+			ids[i] = Long.toString(mentionRoleIds[i]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Scripts read this as <code>message.mention_roles</code>.
+	 *
+	 * @return IDs of the roles specifically mentioned in this message.
+	 */
+	public String[] getMention_roles()
+	{
+		return getMentionRoleIDs();
+	}
+
+	public long getChannelIdLong()
+	{
+		return channel_id;
+	}
+
+	/**
+	 * Available on the messages of <code>MESSAGE_UPDATE</code> and <code>MESSAGE_DELETE</code> events.
+	 *
+	 * @return The cached version of this message from before it was updated or deleted or null if it wasn't cached.
+	 */
+	public Message getPrevious()
+	{
+		return previous;
+	}
+
+	public void setPrevious(Message previous)
+	{
+		this.previous = previous;
+	}
+
+	/**
+	 * @param update Partial update of this message
+	 * @return A copy of this message with the fields sent in the update applied.
+	 */
+	public Message merge(Message update)
+	{
+		final Message m;
+		try
+		{
+			m = (Message) clone();
+		}
+		catch(CloneNotSupportedException e)
+		{
+			throw new RuntimeException(e);
+		}
+		m.previous = null;
+		if(update.content != null)
+		{
+			m.content = update.content;
+			m.mention_everyone = update.mention_everyone;
+			m.pinned = update.pinned;
+		}
+		if(update.edited_timestamp != null)
+		{
+			m.edited_timestamp = update.edited_timestamp;
+		}
+		if(update.mentions != null)
+		{
+			m.mentions = update.mentions;
+		}
+		if(update.mentionRoleIds != null)
+		{
+			m.mentionRoleIds = update.mentionRoleIds;
+		}
+		if(update.attachments != null)
+		{
+			m.attachments = update.attachments;
+		}
+		if(update.embeds != null)
+		{
+			m.embeds = update.embeds;
+		}
+		return m;
+	}
 
 	/**
 	 * @return {@link User} object of the author.
@@ -104,7 +207,7 @@ public class Message extends Structure
 	{
 		if(this.author == null)
 		{
-			return ((Message) DiscordAPI.request("GET", "/channels/" + this.id + "/messages/" + id, new Message())).author;
+			return ((Message) DiscordAPI.request("GET", "/channels/" + channel_id + "/messages/" + id, new Message())).author;
 		}
 		return this.author;
 	}
@@ -159,26 +262,35 @@ public class Message extends Structure
 	}
 
 	/**
+	 * @param emoji Emoji to be added to the message
+	 * @return A future which is completed with this message once the reaction was added.
+	 */
+	public CompletableFuture<Message> addReactionAsync(String emoji)
+	{
+		try
+		{
+			return DiscordAPI.requestAsync("PUT", "/channels/" + channel_id + "/messages/" + id + "/reactions/" + URLEncoder.encode(emoji, "UTF-8") + "/@me", "", null).thenApply(res->this);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+		return CompletableFuture.completedFuture(this);
+	}
+
+	/**
+	 * Adds the given reactions one after another, without waiting for them to be added.
+	 *
 	 * @param emojis List of emojis to be added to the message
 	 * @return this
 	 */
 	public Message addReactions(final String[] emojis)
 	{
-		new Thread(()->
+		CompletableFuture<Message> future = CompletableFuture.completedFuture(this);
+		for(String emoji : emojis)
 		{
-			for(String emoji : emojis)
-			{
-				addReaction(emoji);
-				try
-				{
-					Thread.sleep(500);
-				}
-				catch(InterruptedException e)
-				{
-					e.printStackTrace();
-				}
-			}
-		}).run();
+			future = future.thenCompose(m->addReactionAsync(emoji));
+		}
 		return this;
 	}
 
@@ -207,10 +319,43 @@ public class Message extends Structure
 	public Message delete()
 	{
 		DiscordAPI.request("DELETE", "/channels/" + channel_id + "/messages/" + id);
-		this.id = null;
+		this.id = 0;
 		return this;
 	}
 
+	/**
+	 * @param content New content of this message
+	 * @return A future which is completed with this message once it was edited.
+	 */
+	public CompletableFuture<Message> editAsync(String content)
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("content", content);
+		return DiscordAPI.requestAsync("PATCH", "/channels/" + channel_id + "/messages/" + id, json.toString(), new Message()).thenApply(res->
+		{
+			if(res != null)
+			{
+				this.content = ((Message) res).content;
+			}
+			return this;
+		});
+	}
+
+	/**
+	 * Deletes this message without waiting for it to be deleted.
+	 *
+	 * @return A future which is completed with this message once it was deleted.
+	 * @see Message#delete()
+	 */
+	public CompletableFuture<Message> deleteAsync()
+	{
+		return DiscordAPI.requestAsync("DELETE", "/channels/" + channel_id + "/messages/" + id, "", null).thenApply(res->
+		{
+			this.id = 0;
+			return this;
+		});
+	}
+
 	/**
 	 * Get Time
 	 *
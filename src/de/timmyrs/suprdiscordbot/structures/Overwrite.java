@@ -39,7 +39,7 @@ public class Overwrite extends Structure
 	public Overwrite setUser(User u)
 	{
 		this.type = "member";
-		this.id = u.id;
+		this.id = u.getId();
 		return this;
 	}
 
@@ -51,7 +51,7 @@ public class Overwrite extends Structure
 	public Overwrite setRole(Role r)
 	{
 		this.type = "role";
-		this.id = r.id;
+		this.id = r.getId();
 		return this;
 	}
 
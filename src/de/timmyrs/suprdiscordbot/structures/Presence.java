@@ -1,6 +1,8 @@
 package de.timmyrs.suprdiscordbot.structures;
 
+import com.google.gson.annotations.SerializedName;
 import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.apis.EntityRegistry;
 
 /**
  * Presence Structure.
@@ -19,26 +21,79 @@ public class Presence extends Structure
 	 * The {@link Game} object played or null if none.
 	 */
 	public Game game;
+	@SerializedName("guild_id")
+	private long guildId;
+	/**
+	 * The status - Either "online", "idle", "dnd" or "offline".
+	 */
+	public String status;
+	long[] roles;
+	private String nick;
+
 	/**
-	 * ID of the guild this presences is part of.
 	 * Use {@link #getGuild()} to get this presences' guild tho.
+	 *
+	 * @return ID of the guild this presences is part of or null if it isn't part of a guild.
 	 */
-	public String guild_id;
+	public String getGuildId()
+	{
+		return guildId == 0 ? null : Long.toString(guildId);
+	}
+
 	/**
-	 * The status - Either "online", "idle", "dnd" or "offline".
+	 * Scripts read this as <code>presence.guild_id</code>.
+	 * Use {@link #getGuild()} to get this presences' guild tho.
+	 *
+	 * @return ID of the guild this presences is part of or null if it isn't part of a guild.
 	 */
-	public String status;
+	public String getGuild_id()
+	{
+		return getGuildId();
+	}
+
+	public long getGuildIdLong()
+	{
+		return guildId;
+	}
+
+	void setGuildId(long id)
+	{
+		guildId = id;
+	}
 
 	/**
 	 * @return Guild this presence is part of.
 	 */
 	public Guild getGuild()
 	{
-		if(guild_id == null)
+		if(guildId == 0)
+		{
+			return null;
+		}
+		return Main.discordAPI.getGuild(guildId);
+	}
+
+	/**
+	 * Presence updates also carry the roles and nickname of the member, so a member which isn't cached can be built from them once it comes online.
+	 *
+	 * @return {@link Member} object built from this presence update or null if it doesn't carry the member or its user isn't known.
+	 */
+	public Member toMember()
+	{
+		if(roles == null || guildId == 0)
+		{
+			return null;
+		}
+		final Member m = new Member();
+		m.user = EntityRegistry.internUser(user);
+		if(m.user.username == null)
 		{
 			return null;
 		}
-		return Main.discordAPI.getGuild(guild_id);
+		m.setRoleIDs(roles);
+		m.nick = nick;
+		m.setGuildId(guildId);
+		return m;
 	}
 
 	/**
@@ -3,7 +3,7 @@ package de.timmyrs.suprdiscordbot.structures;
 import de.timmyrs.suprdiscordbot.Main;
 import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
 
-import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Role Structure.
@@ -15,10 +15,7 @@ import java.util.ArrayList;
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class Role extends Structure
 {
-	/**
-	 * Role ID.
-	 */
-	public String id;
+	private long id;
 	/**
 	 * Role name.
 	 */
@@ -49,6 +46,24 @@ public class Role extends Structure
 	 * Is this Role mentionable?
 	 */
 	public boolean mentionable;
+	/**
+	 * Index of this role's bit in {@link Member#roleBits}, assigned by its {@link Guild}.
+	 */
+	transient int ordinal = -1;
+	transient long guild_id;
+
+	/**
+	 * @return Role ID.
+	 */
+	public String getId()
+	{
+		return Long.toString(id);
+	}
+
+	public long getIdLong()
+	{
+		return id;
+	}
 
 	/**
 	 * Returns Guild this role is part of
@@ -58,9 +73,13 @@ public class Role extends Structure
 	 */
 	public Guild getGuild()
 	{
+		if(guild_id != 0)
+		{
+			return Main.discordAPI.getGuild(guild_id);
+		}
 		for(Guild g : Main.discordAPI.getGuilds())
 		{
-			for(Role r : g.roles)
+			for(Role r : g.getRoles())
 			{
 				if(r.equals(this))
 				{
@@ -88,7 +107,7 @@ public class Role extends Structure
 	 */
 	public Role assign(Member m)
 	{
-		DiscordAPI.request("PUT", "/guilds/" + m.guild_id + "/members/" + m.user.id + "/roles/" + this.id);
+		DiscordAPI.request("PUT", "/guilds/" + m.getGuildId() + "/members/" + m.user.getId() + "/roles/" + this.id);
 		return this;
 	}
 
@@ -109,7 +128,7 @@ public class Role extends Structure
 	 */
 	public Role assign(Presence p)
 	{
-		DiscordAPI.request("PUT", "/guilds/" + p.guild_id + "/members/" + p.user.id + "/roles/" + this.id);
+		DiscordAPI.request("PUT", "/guilds/" + p.getGuildId() + "/members/" + p.user.getId() + "/roles/" + this.id);
 		return this;
 	}
 
@@ -122,7 +141,7 @@ public class Role extends Structure
 	 */
 	public Role remove(Member m)
 	{
-		DiscordAPI.request("DELETE", "/guilds/" + m.guild_id + "/members/" + m.user.id + "/roles/" + this.id);
+		DiscordAPI.request("DELETE", "/guilds/" + m.getGuildId() + "/members/" + m.user.getId() + "/roles/" + this.id);
 		return this;
 	}
 
@@ -135,10 +154,32 @@ public class Role extends Structure
 	 */
 	public Role remove(Presence p)
 	{
-		DiscordAPI.request("DELETE", "/guilds/" + p.guild_id + "/members/" + p.user.id + "/roles/" + this.id);
+		DiscordAPI.request("DELETE", "/guilds/" + p.getGuildId() + "/members/" + p.user.getId() + "/roles/" + this.id);
 		return this;
 	}
 
+	/**
+	 * Assigns Role to given {@link Member} without waiting for it to be assigned.
+	 *
+	 * @param m {@link Member} object
+	 * @return A future which is completed with this role once it was assigned.
+	 */
+	public CompletableFuture<Role> assignAsync(Member m)
+	{
+		return DiscordAPI.requestAsync("PUT", "/guilds/" + m.getGuildId() + "/members/" + m.user.getId() + "/roles/" + this.id, "", null).thenApply(res->this);
+	}
+
+	/**
+	 * Removes Role from given {@link Member} without waiting for it to be removed.
+	 *
+	 * @param m {@link Member} object
+	 * @return A future which is completed with this role once it was removed.
+	 */
+	public CompletableFuture<Role> removeAsync(Member m)
+	{
+		return DiscordAPI.requestAsync("DELETE", "/guilds/" + m.getGuildId() + "/members/" + m.user.getId() + "/roles/" + this.id, "", null).thenApply(res->this);
+	}
+
 	/**
 	 * Returns list of Members who are part of this Role
 	 *
@@ -147,16 +188,8 @@ public class Role extends Structure
 	 */
 	public Member[] getMembers()
 	{
-		ArrayList<Member> arrayList = new ArrayList<>();
-		for(Member m : getGuild().members)
-		{
-			if(m.hasRole(this))
-			{
-				arrayList.add(m);
-			}
-		}
-		Member[] tmp = new Member[arrayList.size()];
-		return arrayList.toArray(tmp);
+		final Guild g = getGuild();
+		return g == null ? new Member[0] : g.getMembersWithRole(this);
 	}
 
 	/**
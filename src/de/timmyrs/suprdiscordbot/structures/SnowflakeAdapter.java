@@ -0,0 +1,47 @@
+package de.timmyrs.suprdiscordbot.structures;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes the long fields of structures, which are all snowflake IDs, the way Discord sends them: as strings, with a missing ID being null.
+ * Registered for <code>long</code> and <code>Long</code> on {@link de.timmyrs.suprdiscordbot.Main#gson}, so it also applies to <code>long[]</code> fields such as the roles of a {@link Member}.
+ * Not accessible within script.
+ *
+ * @author timmyRS
+ */
+public class SnowflakeAdapter extends TypeAdapter<Long>
+{
+	@Override
+	public void write(JsonWriter out, Long value) throws IOException
+	{
+		if(value == null || value == 0)
+		{
+			out.nullValue();
+		}
+		else
+		{
+			out.value(Long.toString(value));
+		}
+	}
+
+	@Override
+	public Long read(JsonReader in) throws IOException
+	{
+		final JsonToken token = in.peek();
+		if(token == JsonToken.NULL)
+		{
+			in.nextNull();
+			return 0L;
+		}
+		if(token == JsonToken.NUMBER)
+		{
+			return in.nextLong();
+		}
+		return Structure.snowflake(in.nextString());
+	}
+}
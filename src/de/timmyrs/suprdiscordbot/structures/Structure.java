@@ -20,6 +20,26 @@ public abstract class Structure
 	@NotNull
 	public abstract String toString();
 
+	/**
+	 * @param id Snowflake ID as sent by Discord
+	 * @return The ID as a number or 0 if it is missing or not a snowflake.
+	 */
+	public static long snowflake(String id)
+	{
+		if(id == null || id.isEmpty() || id.length() > 19)
+		{
+			return 0;
+		}
+		try
+		{
+			return Long.parseLong(id);
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
 	/**
 	 * @param o Other Structure
 	 * @return Weather the other structure is equal to this structure.
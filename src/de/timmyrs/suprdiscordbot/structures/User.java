@@ -4,6 +4,7 @@ import com.google.gson.JsonObject;
 import de.timmyrs.suprdiscordbot.Configuration;
 import de.timmyrs.suprdiscordbot.Main;
 import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
+import de.timmyrs.suprdiscordbot.apis.EntityRegistry;
 
 /**
  * User Structure.
@@ -14,10 +15,7 @@ import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class User extends Structure
 {
-	/**
-	 * The user's ID.
-	 */
-	public String id;
+	private long id;
 	/**
 	 * The user's username.
 	 */
@@ -36,6 +34,43 @@ public class User extends Structure
 	 */
 	public String discriminator;
 
+	/**
+	 * @return The user's ID.
+	 */
+	public String getId()
+	{
+		return Long.toString(id);
+	}
+
+	public long getIdLong()
+	{
+		return id;
+	}
+
+	/**
+	 * Applies the username, discriminator and avatar of a newer object of this user, so every guild sharing this object sees the change.
+	 *
+	 * @param u Newer object of this user
+	 * @return A copy of this user from before the update or null if nothing changed.
+	 */
+	public User update(User u)
+	{
+		if(u == this || u.username == null || u.discriminator == null || (u.username.equals(username) && u.discriminator.equals(discriminator) && (u.avatar == null ? avatar == null : u.avatar.equals(avatar))))
+		{
+			return null;
+		}
+		final User previous = new User();
+		previous.id = id;
+		previous.username = username;
+		previous.discriminator = discriminator;
+		previous.avatar = avatar;
+		previous.bot = bot;
+		username = u.username;
+		discriminator = u.discriminator;
+		avatar = u.avatar;
+		return previous;
+	}
+
 	/**
 	 * @return {@link Configuration}
 	 */
@@ -91,16 +126,19 @@ public class User extends Structure
 	 */
 	public Channel getDMChannel()
 	{
-		for(Channel c : Main.discordAPI.getDMs())
+		Main.discordAPI.loadDMs();
+		Channel c = EntityRegistry.getDM(id);
+		if(c == null)
 		{
-			if(c.type == 1 && c.recipients[0].id.equals(id))
+			JsonObject json = new JsonObject();
+			json.addProperty("recipient_id", getId());
+			c = (Channel) DiscordAPI.request("POST", "/users/@me/channels", json.toString(), new Channel());
+			if(c != null)
 			{
-				return c;
+				EntityRegistry.addChannel(c);
 			}
 		}
-		JsonObject json = new JsonObject();
-		json.addProperty("recipient_id", id);
-		return (Channel) DiscordAPI.request("POST", "/users/@me/channels", json.toString(), new Channel());
+		return c;
 	}
 
 	/**
@@ -0,0 +1,81 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+
+/**
+ * {@link ShardCoordinator} for multiple processes on the same machine sharing a directory.
+ * <p>
+ * A shard is owned by the process holding the lock on <code>shard-ID.lock</code> for as long as it runs.
+ * IDENTIFY slots are handed out by locking <code>identify-BUCKET.lock</code>, which contains the time of the bucket's last IDENTIFY.
+ */
+public class FileShardCoordinator implements ShardCoordinator
+{
+	private final File dir;
+	private final int identifyConcurrency;
+	private final ArrayList<FileLock> shardLocks = new ArrayList<>();
+
+	/**
+	 * @param dir                 Directory shared by all processes
+	 * @param identifyConcurrency Number of IDENTIFY rate limit buckets
+	 */
+	public FileShardCoordinator(File dir, int identifyConcurrency)
+	{
+		if(!dir.exists())
+		{
+			dir.mkdirs();
+		}
+		this.dir = dir;
+		this.identifyConcurrency = Math.max(identifyConcurrency, 1);
+	}
+
+	@Override
+	public synchronized boolean claimShard(int shard)
+	{
+		try
+		{
+			//noinspection resource
+			final FileLock lock = new RandomAccessFile(new File(dir, "shard-" + shard + ".lock"), "rw").getChannel().tryLock();
+			if(lock != null)
+			{
+				shardLocks.add(lock);
+				return true;
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized void acquireIdentify(int shard) throws InterruptedException
+	{
+		try(RandomAccessFile file = new RandomAccessFile(new File(dir, "identify-" + (shard % identifyConcurrency) + ".lock"), "rw"))
+		{
+			final FileLock lock = file.getChannel().lock();
+			try
+			{
+				final long wait = (file.length() >= 8 ? file.readLong() : 0) + identifyDelay - System.currentTimeMillis();
+				if(wait > 0)
+				{
+					Thread.sleep(wait);
+				}
+				file.seek(0);
+				file.writeLong(System.currentTimeMillis());
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import de.timmyrs.suprdiscordbot.Main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends every frame received from the gateway to a recording, which can be fed back through {@link FrameReplayer}.
+ * <p>
+ * A recording starts with {@link FrameRecorder#magic} and the total number of shards.
+ * Every frame follows as the time it was received at in milliseconds, the shard it was received on, its kind, its length and its bytes as received,
+ * so frames of the zlib-stream transport are recorded compressed and replaying them inflates them again.
+ * A connection being opened is recorded as an empty frame of kind {@link FrameRecorder#opened}, since a new connection starts a new zlib context.
+ * Frames are buffered and flushed once per second and on shutdown, so recording doesn't slow down the read threads.
+ */
+class FrameRecorder
+{
+	static final int magic = 0x53444253;
+	/**
+	 * Magic of recordings made before the frame kind was recorded, which only contain text frames.
+	 */
+	static final int textMagic = 0x53444252;
+	static final byte text = 0;
+	static final byte binary = 1;
+	static final byte opened = 2;
+	private final DataOutputStream out;
+
+	/**
+	 * @param file  Recording to be appended to
+	 * @param total Total number of shards
+	 * @throws IOException If the recording can't be opened
+	 */
+	FrameRecorder(File file, int total) throws IOException
+	{
+		if(file.exists() && file.length() > 0)
+		{
+			if(FrameReplayer.isTextOnly(file))
+			{
+				throw new IOException(file.getName() + " was recorded in an older format and can't be appended to.");
+			}
+			if(FrameReplayer.totalOf(file) != total)
+			{
+				throw new IOException(file.getName() + " was recorded with a different number of shards.");
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+		}
+		else
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+			out.writeInt(magic);
+			out.writeInt(total);
+			out.flush();
+		}
+		final Thread flusher = new Thread(this::flushLoop, "FrameRecorder");
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "FrameRecorder"));
+		Main.log("Socket", "Recording gateway frames to " + file.getName());
+	}
+
+	void recordText(int shard, String message)
+	{
+		final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		record(shard, text, bytes, 0, bytes.length);
+	}
+
+	void recordBinary(int shard, ByteBuffer frame)
+	{
+		if(frame.hasArray())
+		{
+			record(shard, binary, frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+		else
+		{
+			final byte[] bytes = new byte[frame.remaining()];
+			frame.duplicate().get(bytes);
+			record(shard, binary, bytes, 0, bytes.length);
+		}
+	}
+
+	void recordOpened(int shard)
+	{
+		record(shard, opened, new byte[0], 0, 0);
+	}
+
+	private synchronized void record(int shard, byte kind, byte[] bytes, int offset, int length)
+	{
+		try
+		{
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(shard);
+			out.writeByte(kind);
+			out.writeInt(length);
+			out.write(bytes, offset, length);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	synchronized void flush()
+	{
+		try
+		{
+			out.flush();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void flushLoop()
+	{
+		//noinspection InfiniteLoopStatement
+		do
+		{
+			try
+			{
+				Thread.sleep(1000);
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			flush();
+		}
+		while(true);
+	}
+}
@@ -0,0 +1,188 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import de.timmyrs.suprdiscordbot.Main;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DataFormatException;
+
+/**
+ * Feeds a recording made by {@link FrameRecorder} through the sessions' message handlers without connecting to the gateway,
+ * either at the speed it was recorded at or as fast as possible, and reports the throughput once all frames are applied.
+ * Frames recorded with the zlib-stream transport are inflated through a {@link ZlibStream} per connection, as they were when received,
+ * so replaying a recording made with <code>--zlib-stream</code> and one made without compares the cost of both transports.
+ */
+public class FrameReplayer
+{
+	private final ShardManager manager;
+	private final File file;
+	private final boolean fast;
+
+	FrameReplayer(ShardManager manager, File file, boolean fast)
+	{
+		this.manager = manager;
+		this.file = file;
+		this.fast = fast;
+	}
+
+	/**
+	 * @param file Recording
+	 * @return Total number of shards the recording was made with.
+	 * @throws IOException If the file is not a recording
+	 */
+	public static int totalOf(File file) throws IOException
+	{
+		try(DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			readMagic(file, in);
+			return in.readInt();
+		}
+	}
+
+	/**
+	 * @param file Recording
+	 * @return Whether the recording was made before the frame kind was recorded, so it only contains text frames.
+	 * @throws IOException If the file is not a recording
+	 */
+	static boolean isTextOnly(File file) throws IOException
+	{
+		try(DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			return readMagic(file, in) == FrameRecorder.textMagic;
+		}
+	}
+
+	private static int readMagic(File file, DataInputStream in) throws IOException
+	{
+		final int magic = in.readInt();
+		if(magic != FrameRecorder.magic && magic != FrameRecorder.textMagic)
+		{
+			throw new IOException(file.getName() + " is not a gateway recording.");
+		}
+		return magic;
+	}
+
+	void run() throws IOException
+	{
+		Main.log("Replay", "Replaying " + file.getName() + (fast ? " as fast as possible" : " at recorded speed"));
+		long frames = 0;
+		long bytes = 0;
+		long inflated = 0;
+		final HashMap<Integer, ZlibStream> zlibStreams = new HashMap<>();
+		final long start = System.currentTimeMillis();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536)))
+		{
+			final boolean textOnly = (readMagic(file, in) == FrameRecorder.textMagic);
+			in.readInt();
+			long first = -1;
+			do
+			{
+				final long time;
+				try
+				{
+					time = in.readLong();
+				}
+				catch(EOFException e)
+				{
+					break;
+				}
+				final int shard = in.readInt();
+				final byte kind = (textOnly ? FrameRecorder.text : in.readByte());
+				final byte[] frame = new byte[in.readInt()];
+				in.readFully(frame);
+				if(first == -1)
+				{
+					first = time;
+				}
+				else if(!fast)
+				{
+					final long wait = (time - first) - (System.currentTimeMillis() - start);
+					if(wait > 0)
+					{
+						try
+						{
+							Thread.sleep(wait);
+						}
+						catch(InterruptedException e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+				final WebSocket ws = manager.getShard(shard);
+				if(ws == null)
+				{
+					continue;
+				}
+				bytes += frame.length;
+				final String message;
+				if(kind == FrameRecorder.opened)
+				{
+					final ZlibStream previous = zlibStreams.remove(shard);
+					if(previous != null)
+					{
+						previous.end();
+					}
+					continue;
+				}
+				else if(kind == FrameRecorder.binary)
+				{
+					ZlibStream zlibStream = zlibStreams.get(shard);
+					if(zlibStream == null)
+					{
+						zlibStream = new ZlibStream();
+						zlibStreams.put(shard, zlibStream);
+					}
+					try
+					{
+						message = zlibStream.decode(ByteBuffer.wrap(frame));
+					}
+					catch(DataFormatException e)
+					{
+						throw new IOException("Invalid zlib-stream frame for shard " + shard, e);
+					}
+					if(message == null)
+					{
+						continue;
+					}
+					inflated += message.length();
+				}
+				else
+				{
+					message = new String(frame, StandardCharsets.UTF_8);
+				}
+				ws.handleMessage(message);
+				frames++;
+			}
+			while(true);
+		}
+		finally
+		{
+			for(ZlibStream zlibStream : zlibStreams.values())
+			{
+				zlibStream.end();
+			}
+		}
+		final CompletableFuture<Void> applied = new CompletableFuture<>();
+		manager.pipeline.execute(()->applied.complete(null));
+		applied.join();
+		final long took = Math.max(System.currentTimeMillis() - start, 1);
+		Main.log("Replay", "Applied " + frames + " payloads (" + (bytes / 1024) + " KiB received" + (inflated == 0 ? "" : ", " + (inflated / 1024) + " KiB inflated") + ") in " + took + " ms: " + (frames * 1000 / took) + " payloads/s, " + (bytes * 1000 / 1024 / took) + " KiB/s");
+		final LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+		manager.addMetrics(metrics);
+		for(Map.Entry<String, Long> metric : metrics.entrySet())
+		{
+			Main.log("Replay", metric.getKey() + " = " + metric.getValue());
+		}
+	}
+}
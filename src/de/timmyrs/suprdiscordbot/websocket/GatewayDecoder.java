@@ -0,0 +1,153 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.apis.CachePolicy;
+import de.timmyrs.suprdiscordbot.structures.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-pass decoder for gateway payloads.
+ * <p>
+ * Reads <code>op</code>, <code>s</code> and <code>t</code> and binds <code>d</code> directly into the {@link Structure} registered for the event.
+ * Payloads without a registered structure get their data as {@link JsonElement}.
+ * Discord sends <code>d</code> last, so the data is only buffered as a {@link JsonElement} if it arrives before the event name.
+ * The data of events which don't affect the cache is skipped entirely if no script listens to them.
+ */
+class GatewayDecoder
+{
+	private static final HashMap<String, Class<?>> eventTypes = new HashMap<>();
+	/**
+	 * Events which don't affect the cache and are only handed to the scripts.
+	 */
+	private static final HashSet<String> cachelessEvents = new HashSet<>();
+	static final AtomicLong skipped = new AtomicLong();
+
+	static
+	{
+		eventTypes.put("GUILD_CREATE", Guild.class);
+		eventTypes.put("GUILD_MEMBER_ADD", Member.class);
+		eventTypes.put("GUILD_MEMBER_REMOVE", Presence.class);
+		eventTypes.put("GUILD_MEMBER_UPDATE", Member.class);
+		eventTypes.put("GUILD_MEMBERS_CHUNK", GuildMembersChunk.class);
+		eventTypes.put("PRESENCE_UPDATE", Presence.class);
+		eventTypes.put("CHANNEL_UPDATE", Channel.class);
+		eventTypes.put("MESSAGE_CREATE", Message.class);
+		eventTypes.put("MESSAGE_UPDATE", Message.class);
+		eventTypes.put("MESSAGE_DELETE", Message.class);
+		cachelessEvents.add("TYPING_START");
+		if(CachePolicy.messages == 0 && CachePolicy.responses == 0)
+		{
+			cachelessEvents.add("MESSAGE_UPDATE");
+			cachelessEvents.add("MESSAGE_DELETE");
+		}
+	}
+
+	static GatewayPayload decode(String message) throws IOException
+	{
+		final GatewayPayload payload = new GatewayPayload();
+		final JsonReader reader = new JsonReader(new StringReader(message));
+		boolean hasOp = false;
+		JsonElement data = null;
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case "op":
+					payload.op = reader.nextInt();
+					hasOp = true;
+					break;
+				case "s":
+					if(reader.peek() == JsonToken.NULL)
+					{
+						reader.nextNull();
+					}
+					else
+					{
+						payload.s = reader.nextInt();
+					}
+					break;
+				case "t":
+					if(reader.peek() == JsonToken.NULL)
+					{
+						reader.nextNull();
+					}
+					else
+					{
+						payload.t = reader.nextString();
+					}
+					break;
+				case "d":
+					if(reader.peek() == JsonToken.NULL)
+					{
+						reader.nextNull();
+					}
+					else if(hasOp && (payload.op != 0 || payload.t != null))
+					{
+						if(isIgnored(payload))
+						{
+							reader.skipValue();
+						}
+						else
+						{
+							payload.d = read(reader, typeOf(payload));
+						}
+					}
+					else
+					{
+						data = Main.jsonParser.parse(reader);
+					}
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if(data != null && !isIgnored(payload))
+		{
+			final Class<?> type = typeOf(payload);
+			payload.d = (type == JsonElement.class ? data : Main.gson.fromJson(data, type));
+		}
+		return payload;
+	}
+
+	/**
+	 * @param payload Payload whose event name is known
+	 * @return Whether the payload's data doesn't need to be read, because its event doesn't affect the cache and no script listens to it.
+	 */
+	private static boolean isIgnored(GatewayPayload payload)
+	{
+		if(payload.op == 0 && cachelessEvents.contains(payload.t) && !Main.scriptManager.isSubscribed(payload.t))
+		{
+			skipped.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private static Class<?> typeOf(GatewayPayload payload)
+	{
+		if(payload.op == 0 && eventTypes.containsKey(payload.t))
+		{
+			return eventTypes.get(payload.t);
+		}
+		return JsonElement.class;
+	}
+
+	private static Object read(JsonReader reader, Class<?> type) throws IOException
+	{
+		if(type == JsonElement.class)
+		{
+			return Main.jsonParser.parse(reader);
+		}
+		return Main.gson.getAdapter(type).read(reader);
+	}
+}
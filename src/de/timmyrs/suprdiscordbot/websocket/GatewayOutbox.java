@@ -0,0 +1,235 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues the payloads sent through a single session, so it stays within the gateway's limit of 120 payloads per 60 seconds.
+ * <p>
+ * Heartbeats, IDENTIFYs and RESUMEs are sent right away and always have a few payloads of the budget reserved for them.
+ * All other payloads are queued until the session is ready and there is budget left.
+ * Status updates are further limited to 5 per 60 seconds; a status update replaces one that is still waiting, so only the latest one is sent.
+ * Member requests made within a short time are sent as one payload with the IDs of all their guilds, see {@link GatewayOutbox#requestMembers(long)}.
+ */
+class GatewayOutbox
+{
+	private static final int limit = 120;
+	private static final long period = 60000;
+	private static final int reserved = 5;
+	private static final int capacity = 120;
+	private static final int statusLimit = 5;
+	private static final int membersBatchSize = 100;
+	private static final long membersBatchDelay = 250;
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r->new Thread(r, "GatewayOutbox"));
+	private static final AtomicLong sent = new AtomicLong();
+	private static final AtomicLong delayed = new AtomicLong();
+	private static final AtomicLong coalesced = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private final WebSocket ws;
+	private final LinkedList<JsonObject> queue = new LinkedList<>();
+	private JsonObject status;
+	private JsonObject members;
+	private boolean open;
+	private double tokens = limit;
+	private double statusTokens = statusLimit;
+	private long refilledAt = System.currentTimeMillis();
+	private ScheduledFuture<?> scheduled;
+
+	GatewayOutbox(WebSocket ws)
+	{
+		this.ws = ws;
+	}
+
+	/**
+	 * Adds the counters of all sessions and the number of queued payloads of the given sessions to the given metrics.
+	 *
+	 * @param metrics Metrics to be added to
+	 * @param shards  Sessions whose queues should be counted
+	 */
+	static void addMetrics(Map<String, Long> metrics, WebSocket[] shards)
+	{
+		long queued = 0;
+		for(WebSocket ws : shards)
+		{
+			synchronized(ws.outbox)
+			{
+				queued += ws.outbox.queue.size() + (ws.outbox.status == null ? 0 : 1);
+			}
+		}
+		metrics.put("gateway.send.queue", queued);
+		metrics.put("gateway.send.sent", sent.get());
+		metrics.put("gateway.send.delayed", delayed.get());
+		metrics.put("gateway.send.coalesced", coalesced.get());
+		metrics.put("gateway.send.dropped", dropped.get());
+	}
+
+	/**
+	 * Queues a request for all members of the given guild (OP 8).
+	 * The guild is added to the request which is still being collected, which is queued once it has the IDs of {@link GatewayOutbox#membersBatchSize} guilds or {@link GatewayOutbox#membersBatchDelay} milliseconds after it was started.
+	 *
+	 * @param guildId ID of the guild
+	 */
+	synchronized void requestMembers(long guildId)
+	{
+		if(members == null)
+		{
+			final JsonObject d = new JsonObject();
+			d.add("guild_id", new JsonArray());
+			d.addProperty("query", "");
+			d.addProperty("limit", 0);
+			final JsonObject json = new JsonObject();
+			json.addProperty("op", 8);
+			json.add("d", d);
+			members = json;
+			scheduler.schedule(()->queueMembers(json), membersBatchDelay, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			coalesced.incrementAndGet();
+		}
+		final JsonArray guilds = members.getAsJsonObject("d").getAsJsonArray("guild_id");
+		guilds.add(new JsonPrimitive(Long.toString(guildId)));
+		if(guilds.size() >= membersBatchSize)
+		{
+			queueMembers(members);
+		}
+	}
+
+	private synchronized void queueMembers(JsonObject json)
+	{
+		if(members == json)
+		{
+			members = null;
+			send(json);
+		}
+	}
+
+	/**
+	 * Sends the given payload as soon as the rate limit allows.
+	 * If the queue is full, the oldest queued payload is dropped, except for member requests, whose guilds would otherwise never be loaded.
+	 *
+	 * @param json Payload to be sent
+	 */
+	synchronized void send(JsonObject json)
+	{
+		final int op = json.get("op").getAsInt();
+		if(op == 1 || op == 2 || op == 6)
+		{
+			refill();
+			tokens--;
+			write(json);
+			return;
+		}
+		if(op == 3)
+		{
+			if(status != null)
+			{
+				coalesced.incrementAndGet();
+			}
+			status = json;
+		}
+		else
+		{
+			if(queue.size() >= capacity)
+			{
+				final Iterator<JsonObject> it = queue.iterator();
+				while(it.hasNext())
+				{
+					if(it.next().get("op").getAsInt() != 8)
+					{
+						it.remove();
+						dropped.incrementAndGet();
+						break;
+					}
+				}
+			}
+			queue.add(json);
+		}
+		drain();
+		if(status == json || queue.peekLast() == json)
+		{
+			delayed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Called once the session is ready, so queued payloads may be sent.
+	 */
+	synchronized void open()
+	{
+		open = true;
+		drain();
+	}
+
+	/**
+	 * Called once the connection is gone. Queued payloads are kept for the next connection, which has a fresh budget.
+	 */
+	synchronized void close()
+	{
+		open = false;
+		tokens = limit;
+		refilledAt = System.currentTimeMillis();
+		if(scheduled != null)
+		{
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+	}
+
+	private synchronized void drain()
+	{
+		if(!open)
+		{
+			return;
+		}
+		refill();
+		if(status != null && statusTokens >= 1 && tokens >= reserved + 1)
+		{
+			statusTokens--;
+			tokens--;
+			write(status);
+			status = null;
+		}
+		while(!queue.isEmpty() && tokens >= reserved + 1)
+		{
+			tokens--;
+			write(queue.removeFirst());
+		}
+		if((!queue.isEmpty() || status != null) && scheduled == null)
+		{
+			final double wait = queue.isEmpty() && tokens >= reserved + 1 ? (1 - statusTokens) * period / statusLimit : (reserved + 1 - tokens) * period / limit;
+			scheduled = scheduler.schedule(()->
+			{
+				synchronized(this)
+				{
+					scheduled = null;
+					drain();
+				}
+			}, (long) Math.ceil(wait), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void refill()
+	{
+		final long now = System.currentTimeMillis();
+		tokens = Math.min(limit, tokens + (double) (now - refilledAt) * limit / period);
+		statusTokens = Math.min(statusLimit, statusTokens + (double) (now - refilledAt) * statusLimit / period);
+		refilledAt = now;
+	}
+
+	private void write(JsonObject json)
+	{
+		sent.incrementAndGet();
+		ws.write(json.toString());
+	}
+}
@@ -0,0 +1,253 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.structures.GatewayPayload;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes the frames of all sessions in stages, so a slow stage can't stall socket reads or heartbeats:
+ * <ol>
+ * <li>The read threads only enqueue raw frames.</li>
+ * <li>Decode threads parse them and handle control payloads such as ACKs and reconnects right away.</li>
+ * <li>A single apply thread applies the dispatches to the cache in the order they were received, which is <code>s</code> order within a session.</li>
+ * <li>Fan-out threads hand the resulting events to the scripts.</li>
+ * </ol>
+ * Every stage is bounded by <code>pipelineQueueSize</code> (default 1000), so a stage which falls behind slows down the one before it.
+ * The thread counts are read from <code>pipelineDecodeThreads</code> (default 2) and <code>pipelineFanOutThreads</code> (default 1).
+ */
+public class GatewayPipeline
+{
+	private final ArrayBlockingQueue<Frame> frames;
+	private final Semaphore decodeSlots;
+	private final HashMap<Long, Frame> decoded = new HashMap<>();
+	private final ThreadPoolExecutor fanOut;
+	private final int decodeThreads;
+	private final Object enqueueLock = new Object();
+	private long nextTicket = 0;
+	private long applyTicket = 0;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong applied = new AtomicLong();
+	private final AtomicLong readerBlocked = new AtomicLong();
+	private final AtomicLong decodeBlocked = new AtomicLong();
+	private final AtomicLong fanOutBlocked = new AtomicLong();
+
+	GatewayPipeline()
+	{
+		final int queueSize = Main.configuration.getInt("pipelineQueueSize") > 0 ? Main.configuration.getInt("pipelineQueueSize") : 1000;
+		decodeThreads = Main.configuration.getInt("pipelineDecodeThreads") > 0 ? Main.configuration.getInt("pipelineDecodeThreads") : 2;
+		final int fanOutThreads = Main.configuration.getInt("pipelineFanOutThreads") > 0 ? Main.configuration.getInt("pipelineFanOutThreads") : 1;
+		frames = new ArrayBlockingQueue<>(queueSize);
+		decodeSlots = new Semaphore(queueSize);
+		fanOut = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r->new Thread(r, "GatewayFanOut"), (r, executor)->
+		{
+			// The fan-out queue is full, so the apply thread has to hand the event to the scripts itself.
+			fanOutBlocked.incrementAndGet();
+			r.run();
+		});
+	}
+
+	void start()
+	{
+		for(int i = 0; i < decodeThreads; i++)
+		{
+			new Thread(this::decodeLoop, "GatewayDecoder").start();
+		}
+		new Thread(this::applyLoop, "GatewayApplier").start();
+	}
+
+	/**
+	 * Enqueues a raw frame, blocking the calling read thread if the decode stage is full.
+	 *
+	 * @param ws      The session the frame was received on
+	 * @param message The raw frame
+	 */
+	void submit(WebSocket ws, String message)
+	{
+		received.incrementAndGet();
+		enqueue(ws, message, null);
+	}
+
+	/**
+	 * Runs the given task on the apply thread once all frames received before it have been applied.
+	 *
+	 * @param task Task to be run
+	 */
+	void execute(Runnable task)
+	{
+		enqueue(null, null, task);
+	}
+
+	private void enqueue(WebSocket ws, String message, Runnable task)
+	{
+		// Tickets are queued in the order they are handed out, so the decode threads take the frame the apply thread is waiting for before any later one.
+		synchronized(enqueueLock)
+		{
+			final Frame frame = new Frame(nextTicket++, ws, message, task);
+			boolean queued = frames.offer(frame);
+			if(!queued)
+			{
+				readerBlocked.incrementAndGet();
+			}
+			// Every ticket has to be queued, otherwise the apply thread would wait for it forever.
+			while(!queued)
+			{
+				try
+				{
+					frames.put(frame);
+					queued = true;
+				}
+				catch(InterruptedException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands an event to the scripts on a fan-out thread.
+	 *
+	 * @param event Name of the event
+	 * @param data  Data of the event
+	 */
+	void fanOut(String event, Object data)
+	{
+		fanOut.execute(()->Main.scriptManager.fireEvent(event, data));
+	}
+
+	/**
+	 * Adds the pipeline's counters and queue sizes to the given metrics.
+	 *
+	 * @param metrics Metrics to be added to
+	 */
+	void addMetrics(Map<String, Long> metrics)
+	{
+		metrics.put("gateway.frames.received", received.get());
+		metrics.put("gateway.frames.applied", applied.get());
+		metrics.put("gateway.queue.raw", (long) frames.size());
+		synchronized(decoded)
+		{
+			metrics.put("gateway.queue.decoded", (long) decoded.size());
+		}
+		metrics.put("gateway.queue.fanout", (long) fanOut.getQueue().size());
+		metrics.put("gateway.blocked.reader", readerBlocked.get());
+		metrics.put("gateway.blocked.decode", decodeBlocked.get());
+		metrics.put("gateway.blocked.fanout", fanOutBlocked.get());
+	}
+
+	private void decodeLoop()
+	{
+		//noinspection InfiniteLoopStatement
+		do
+		{
+			try
+			{
+				// A slot is reserved before taking a frame, so the frame the apply thread is waiting for always has one.
+				if(!decodeSlots.tryAcquire())
+				{
+					decodeBlocked.incrementAndGet();
+					decodeSlots.acquire();
+				}
+				final Frame frame = frames.take();
+				if(frame.task == null)
+				{
+					try
+					{
+						frame.payload = GatewayDecoder.decode(frame.message);
+						frame.ws.handle(frame.payload, frame.message);
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+				synchronized(decoded)
+				{
+					decoded.put(frame.ticket, frame);
+					decoded.notifyAll();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		while(true);
+	}
+
+	private void applyLoop()
+	{
+		//noinspection InfiniteLoopStatement
+		do
+		{
+			try
+			{
+				Frame frame;
+				synchronized(decoded)
+				{
+					while((frame = decoded.remove(applyTicket)) == null)
+					{
+						decoded.wait();
+					}
+					applyTicket++;
+				}
+				decodeSlots.release();
+				if(frame.task != null)
+				{
+					try
+					{
+						frame.task.run();
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+				else
+				{
+					if(frame.payload != null && frame.payload.op == 0)
+					{
+						try
+						{
+							frame.ws.dispatch(frame.payload);
+						}
+						catch(Exception e)
+						{
+							e.printStackTrace();
+						}
+					}
+					applied.incrementAndGet();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		while(true);
+	}
+
+	private static class Frame
+	{
+		final long ticket;
+		final WebSocket ws;
+		final String message;
+		final Runnable task;
+		GatewayPayload payload;
+
+		Frame(long ticket, WebSocket ws, String message, Runnable task)
+		{
+			this.ticket = ticket;
+			this.ws = ws;
+			this.message = message;
+			this.task = task;
+		}
+	}
+}
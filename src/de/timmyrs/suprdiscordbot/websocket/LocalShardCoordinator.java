@@ -0,0 +1,38 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+/**
+ * {@link ShardCoordinator} for a single process running all of its shards.
+ */
+public class LocalShardCoordinator implements ShardCoordinator
+{
+	private final long[] lastIdentify;
+
+	/**
+	 * @param identifyConcurrency Number of IDENTIFY rate limit buckets
+	 */
+	public LocalShardCoordinator(int identifyConcurrency)
+	{
+		this.lastIdentify = new long[Math.max(identifyConcurrency, 1)];
+	}
+
+	@Override
+	public boolean claimShard(int shard)
+	{
+		return true;
+	}
+
+	@Override
+	public void acquireIdentify(int shard) throws InterruptedException
+	{
+		final int bucket = shard % lastIdentify.length;
+		synchronized(lastIdentify)
+		{
+			final long wait = lastIdentify[bucket] + identifyDelay - System.currentTimeMillis();
+			if(wait > 0)
+			{
+				Thread.sleep(wait);
+			}
+			lastIdentify[bucket] = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.structures.Presence;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the presence updates of a user which arrive within <code>presenceCoalesceWindow</code> milliseconds, so a user flapping between statuses or games
+ * only causes the net change to be applied and fired once per window.
+ * The window is 0 by default, which applies every update right away.
+ * <p>
+ * Pending updates are only touched on the apply thread, so they are applied in order with all other dispatches.
+ */
+class PresenceCoalescer
+{
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r->new Thread(r, "PresenceCoalescer"));
+	static final AtomicLong received = new AtomicLong();
+	static final AtomicLong merged = new AtomicLong();
+	private final WebSocket ws;
+	private final int window = Main.configuration.getInt("presenceCoalesceWindow");
+	private final HashMap<String, Presence> pending = new HashMap<>();
+
+	PresenceCoalescer(WebSocket ws)
+	{
+		this.ws = ws;
+	}
+
+	/**
+	 * @param p The presence update
+	 * @return Whether the update will be applied once the window is over, otherwise it has to be applied right away.
+	 */
+	boolean offer(Presence p)
+	{
+		received.incrementAndGet();
+		if(window <= 0)
+		{
+			return false;
+		}
+		final String key = keyOf(p);
+		final Presence previous = pending.get(key);
+		if(previous == null)
+		{
+			scheduler.schedule(()->Main.shardManager.pipeline.execute(()->flush(key)), window, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			merged.incrementAndGet();
+			// Partial users only carry their ID, whereas a user without an avatar always has a null avatar.
+			if(p.user.username == null)
+			{
+				p.user = previous.user;
+			}
+		}
+		pending.put(key, p);
+		return true;
+	}
+
+	/**
+	 * Discards the pending update of a member who left.
+	 *
+	 * @param p Presence of the member
+	 */
+	void drop(Presence p)
+	{
+		pending.remove(keyOf(p));
+	}
+
+	private void flush(String key)
+	{
+		final Presence p = pending.remove(key);
+		if(p != null)
+		{
+			ws.applyPresence(p);
+		}
+	}
+
+	private static String keyOf(Presence p)
+	{
+		return p.getGuildIdLong() + ":" + p.user.getIdLong();
+	}
+}
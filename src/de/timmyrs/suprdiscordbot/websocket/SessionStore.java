@@ -0,0 +1,177 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.apis.EntityRegistry;
+import de.timmyrs.suprdiscordbot.structures.Guild;
+import de.timmyrs.suprdiscordbot.structures.Member;
+import de.timmyrs.suprdiscordbot.structures.Presence;
+import de.timmyrs.suprdiscordbot.structures.User;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * Checkpoints the resume state of every session together with a snapshot of its guilds to the <code>sessions</code> directory,
+ * so a restarted bot can RESUME and only receive the events it missed, instead of IDENTIFYing and receiving every guild again.
+ * <p>
+ * Checkpoints are taken on the apply thread of the {@link GatewayPipeline}, so the snapshot always matches the sequence number it is saved with.
+ * Taking one only copies references to the guilds and their member and presence arrays, while serializing and writing it happens on the thread saving it,
+ * so the apply thread isn't held up by large caches.
+ * Entities changed by later events may already be saved with their changes, which are applied again when those events are replayed on RESUME.
+ */
+class SessionStore
+{
+	private final File dir = new File("sessions");
+	private final ShardManager manager;
+
+	SessionStore(ShardManager manager)
+	{
+		this.manager = manager;
+	}
+
+	/**
+	 * Restores the checkpoint of the given session, if there is one for the same gateway and number of shards.
+	 *
+	 * @param ws The session to be restored
+	 */
+	void restore(WebSocket ws)
+	{
+		final File file = fileOf(ws.shard);
+		if(!file.exists())
+		{
+			return;
+		}
+		try(Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+		{
+			final JsonObject json = Main.jsonParser.parse(reader).getAsJsonObject();
+			if(json.get("total").getAsInt() != manager.total || !json.get("gateway").getAsString().equals(manager.getGatewayURL()))
+			{
+				return;
+			}
+			final Guild[] guilds = Main.gson.fromJson(json.get("guilds"), Guild[].class);
+			for(Guild g : guilds)
+			{
+				g.linkChildren();
+				EntityRegistry.addGuild(g);
+			}
+			Main.discordAPI.user = Main.gson.fromJson(json.get("user"), User.class);
+			ws.restore(json.get("session_id").getAsString(), json.get("seq").getAsInt());
+			ws.log("Restored session with " + guilds.length + " guilds from " + file.getName() + ".");
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Takes a checkpoint of the given session.
+	 * Must be run on the apply thread.
+	 *
+	 * @param ws The session to be saved
+	 * @return The checkpoint to be passed to {@link #save(Checkpoint)}.
+	 */
+	Checkpoint snapshot(WebSocket ws)
+	{
+		final Checkpoint checkpoint = new Checkpoint(ws.shard, ws.session_id, ws.appliedSeq, Main.discordAPI.user);
+		if(!checkpoint.session_id.equals(""))
+		{
+			for(Guild g : EntityRegistry.getGuilds())
+			{
+				if(manager.shardFor(g.getIdLong()) == ws.shard)
+				{
+					checkpoint.guilds.add(g);
+					checkpoint.members.add(g.getMembers());
+					checkpoint.presences.add(g.getPresences());
+				}
+			}
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Saves the given checkpoint or removes the saved one if its session can't be resumed.
+	 *
+	 * @param checkpoint Checkpoint taken by {@link #snapshot(WebSocket)}
+	 */
+	void save(Checkpoint checkpoint)
+	{
+		final File file = fileOf(checkpoint.shard);
+		if(checkpoint.session_id.equals(""))
+		{
+			if(file.exists())
+			{
+				file.delete();
+			}
+			return;
+		}
+		final JsonObject json = new JsonObject();
+		json.addProperty("session_id", checkpoint.session_id);
+		json.addProperty("seq", checkpoint.seq);
+		json.addProperty("shard", checkpoint.shard);
+		json.addProperty("total", manager.total);
+		json.addProperty("gateway", manager.getGatewayURL());
+		json.add("user", Main.gson.toJsonTree(checkpoint.user));
+		final JsonArray guilds = new JsonArray();
+		for(int i = 0; i < checkpoint.guilds.size(); i++)
+		{
+			final JsonObject guild = Main.gson.toJsonTree(checkpoint.guilds.get(i)).getAsJsonObject();
+			guild.add("members", Main.gson.toJsonTree(checkpoint.members.get(i)));
+			guild.add("presences", Main.gson.toJsonTree(checkpoint.presences.get(i)));
+			guilds.add(guild);
+		}
+		json.add("guilds", guilds);
+		if(!dir.exists())
+		{
+			dir.mkdir();
+		}
+		final File tmp = new File(dir, file.getName() + ".tmp");
+		try
+		{
+			try(Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))
+			{
+				Main.gson.toJson(json, writer);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private File fileOf(int shard)
+	{
+		return new File(dir, "shard-" + shard + ".json");
+	}
+
+	static class Checkpoint
+	{
+		final int shard;
+		final String session_id;
+		final int seq;
+		final User user;
+		final ArrayList<Guild> guilds = new ArrayList<>();
+		final ArrayList<Member[]> members = new ArrayList<>();
+		final ArrayList<Presence[]> presences = new ArrayList<>();
+
+		Checkpoint(int shard, String session_id, int seq, User user)
+		{
+			this.shard = shard;
+			this.session_id = session_id;
+			this.seq = seq;
+			this.user = user;
+		}
+	}
+}
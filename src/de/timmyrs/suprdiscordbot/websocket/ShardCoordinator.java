@@ -0,0 +1,35 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+/**
+ * Hands out shards and IDENTIFY slots to {@link ShardManager}s.
+ * <p>
+ * Discord allows one IDENTIFY per 5 seconds per rate limit bucket, a shard's bucket being <code>shard % identifyConcurrency</code>.
+ * Implementations make sure that a shard is only run once and that the IDENTIFY limit is respected by all managers sharing them.
+ *
+ * @see LocalShardCoordinator
+ * @see FileShardCoordinator
+ */
+public interface ShardCoordinator
+{
+	/**
+	 * Minimum time between two IDENTIFYs of the same bucket in milliseconds.
+	 */
+	long identifyDelay = 5000;
+
+	/**
+	 * Claims a shard for the calling process.
+	 *
+	 * @param shard ID of the shard
+	 * @return Whether the shard was claimed; false if it is already being run elsewhere.
+	 */
+	boolean claimShard(int shard);
+
+	/**
+	 * Blocks until the given shard may IDENTIFY.
+	 * The caller is expected to IDENTIFY right after this returns.
+	 *
+	 * @param shard ID of the shard
+	 * @throws InterruptedException If the calling thread was interrupted while waiting.
+	 */
+	void acquireIdentify(int shard) throws InterruptedException;
+}
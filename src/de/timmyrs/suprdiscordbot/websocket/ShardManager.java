@@ -0,0 +1,363 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import de.timmyrs.suprdiscordbot.Main;
+import de.timmyrs.suprdiscordbot.RAMCleaner;
+import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
+import de.timmyrs.suprdiscordbot.scripts.ScriptWatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages the gateway sessions of all shards within this process.
+ * <p>
+ * The number of shards is read from the <code>shards</code> entry of the <code>config.json</code> and defaults to 1,
+ * unless this process only runs a range of them (see {@link Main}).
+ * IDENTIFYs are handed out by a {@link ShardCoordinator}; the number of IDENTIFY rate limit buckets is read from <code>identifyConcurrency</code> and defaults to 1.
+ * The gateway URL is taken from the <code>gateway</code> entry, so the bot can also be pointed at a local gateway.
+ * Every <code>sessionCheckpointInterval</code> seconds (60 by default) and on shutdown, the sessions are saved, so they can be resumed after a restart (see {@link SessionStore}).
+ *
+ * @see WebSocket
+ */
+public class ShardManager
+{
+	/**
+	 * Total number of shards.
+	 */
+	public final int total;
+	final GatewayPipeline pipeline = new GatewayPipeline();
+	private final SessionStore sessions = new SessionStore(this);
+	volatile FrameRecorder recorder;
+	volatile boolean replaying;
+	private final WebSocket[] shards;
+	private final ShardCoordinator coordinator;
+	private final LinkedBlockingQueue<WebSocket> identifyQueue = new LinkedBlockingQueue<>();
+	private final HashSet<Integer> readyShards = new HashSet<>();
+	private String gatewayURL;
+
+	/**
+	 * @param coordinator {@link ShardCoordinator} handing out the shards and IDENTIFY slots
+	 * @param total       Total number of shards
+	 * @param shards      IDs of the shards this process should run
+	 */
+	public ShardManager(ShardCoordinator coordinator, int total, int[] shards)
+	{
+		this.coordinator = coordinator;
+		this.total = Math.max(total, 1);
+		final ArrayList<WebSocket> claimed = new ArrayList<>();
+		for(int shard : shards)
+		{
+			if(coordinator.claimShard(shard))
+			{
+				claimed.add(new WebSocket(this, shard));
+			}
+			else
+			{
+				Main.log("Socket", "Shard " + shard + " is already being run by another process.");
+			}
+		}
+		this.shards = claimed.toArray(new WebSocket[claimed.size()]);
+	}
+
+	/**
+	 * Connects all shards.
+	 */
+	public void start()
+	{
+		for(WebSocket ws : shards)
+		{
+			sessions.restore(ws);
+		}
+		pipeline.start();
+		new Thread(this::identifyLoop, "ShardIdentifier").start();
+		new Thread(this::checkpointLoop, "SessionCheckpoint").start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::checkpoint, "SessionCheckpoint"));
+		for(WebSocket ws : shards)
+		{
+			ws.connect();
+		}
+	}
+
+	/**
+	 * Records all frames received from now on to the given file.
+	 *
+	 * @param file Recording to be appended to
+	 * @throws IOException If the recording can't be opened
+	 * @see FrameRecorder
+	 */
+	public void record(File file) throws IOException
+	{
+		recorder = new FrameRecorder(file, total);
+	}
+
+	/**
+	 * Feeds the given recording through the sessions instead of connecting them and reports the throughput.
+	 * The replay runs offline, so no REST requests are sent and neither the script watcher nor the RAM cleaner are started, which keeps it repeatable.
+	 *
+	 * @param file Recording made with {@link ShardManager#record(File)}
+	 * @param fast Whether to replay as fast as possible instead of at the recorded speed
+	 * @throws IOException If the recording can't be read
+	 * @see FrameReplayer
+	 */
+	public void replay(File file, boolean fast) throws IOException
+	{
+		replaying = true;
+		DiscordAPI.offline = true;
+		pipeline.start();
+		new FrameReplayer(this, file, fast).run();
+	}
+
+	/**
+	 * @return The URL sessions connect to.
+	 */
+	synchronized String getGatewayURL()
+	{
+		if(gatewayURL == null)
+		{
+			if(!Main.configuration.has("gateway"))
+			{
+				JsonObject json = Main.jsonParser.parse(DiscordAPI.request("GET", "/gateway").toString()).getAsJsonObject();
+				Main.configuration.set("gateway", json.get("url").getAsString());
+			}
+			gatewayURL = Main.configuration.getString("gateway") + "/?v=6&encoding=json" + (Main.zlibStream ? "&compress=zlib-stream" : "");
+		}
+		return gatewayURL;
+	}
+
+	/**
+	 * @return All sessions of this process.
+	 */
+	public WebSocket[] getShards()
+	{
+		return shards;
+	}
+
+	/**
+	 * @param shard ID of the shard
+	 * @return The session of the given shard or null if it is not run by this process.
+	 */
+	public WebSocket getShard(int shard)
+	{
+		for(WebSocket ws : shards)
+		{
+			if(ws.shard == shard)
+			{
+				return ws;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param guildId ID of the guild
+	 * @return ID of the shard the given guild's events are sent to.
+	 */
+	public int shardFor(String guildId)
+	{
+		return shardFor(Long.parseLong(guildId));
+	}
+
+	/**
+	 * @param guildId ID of the guild
+	 * @return ID of the shard the given guild's events are sent to.
+	 */
+	public int shardFor(long guildId)
+	{
+		return (int) ((guildId >> 22) % total);
+	}
+
+	/**
+	 * Sends a payload through the session it belongs to.
+	 * Status updates are sent to all shards, payloads with a <code>guild_id</code> to that guild's shard and everything else to the first shard of this process.
+	 * If the session is not ready, the payload is sent once it is.
+	 * Payloads for guilds of shards run by other processes are dropped.
+	 *
+	 * @param json Payload to be sent
+	 */
+	public void send(JsonObject json)
+	{
+		if(json.get("op").getAsInt() == 3)
+		{
+			for(WebSocket ws : shards)
+			{
+				send(ws, json);
+			}
+			return;
+		}
+		final JsonElement d = json.get("d");
+		if(d != null && d.isJsonObject() && d.getAsJsonObject().has("guild_id"))
+		{
+			JsonElement guildId = d.getAsJsonObject().get("guild_id");
+			if(guildId.isJsonArray())
+			{
+				guildId = guildId.getAsJsonArray().get(0);
+			}
+			send(getShard(shardFor(guildId.getAsString())), json);
+		}
+		else if(shards.length > 0)
+		{
+			send(shards[0], json);
+		}
+	}
+
+	/**
+	 * Requests all members of the given guild through its shard, batched with the requests for other guilds of that shard.
+	 *
+	 * @param guildId ID of the guild
+	 * @return Whether the request was queued, which it isn't if the guild's shard is run by another process.
+	 */
+	public boolean requestMembers(long guildId)
+	{
+		final WebSocket ws = getShard(shardFor(guildId));
+		if(ws == null)
+		{
+			return false;
+		}
+		ws.outbox.requestMembers(guildId);
+		return true;
+	}
+
+	private void send(WebSocket ws, JsonObject json)
+	{
+		if(ws == null)
+		{
+			if(Main.debug)
+			{
+				Main.log("Socket", "Dropping payload for a shard of another process: " + json);
+			}
+		}
+		else
+		{
+			ws.send(json);
+		}
+	}
+
+	/**
+	 * Adds the metrics of the pipeline, heartbeats and outboxes to the given metrics.
+	 *
+	 * @param metrics Metrics to be added to
+	 */
+	public void addMetrics(Map<String, Long> metrics)
+	{
+		pipeline.addMetrics(metrics);
+		WebSocketHeart.addMetrics(metrics);
+		GatewayOutbox.addMetrics(metrics, shards);
+		metrics.put("gateway.events.skipped", GatewayDecoder.skipped.get());
+		metrics.put("gateway.presence.received", PresenceCoalescer.received.get());
+		metrics.put("gateway.presence.merged", PresenceCoalescer.merged.get());
+	}
+
+	/**
+	 * Closes all sessions.
+	 *
+	 * @param reason Reason to be logged
+	 */
+	public void close(String reason)
+	{
+		for(WebSocket ws : shards)
+		{
+			ws.close(reason);
+		}
+	}
+
+	void queueIdentify(WebSocket ws)
+	{
+		identifyQueue.add(ws);
+	}
+
+	synchronized void onReady(WebSocket ws)
+	{
+		readyShards.add(ws.shard);
+		if(!Main.ready && readyShards.size() == shards.length)
+		{
+			if(!replaying)
+			{
+				new ScriptWatcher();
+				new RAMCleaner();
+			}
+			Main.ready = true;
+		}
+	}
+
+	/**
+	 * Saves the resume state and guilds of all sessions.
+	 * The checkpoints are taken on the apply thread, but written on the calling thread.
+	 * Checkpoints are taken and written one at a time, so the shutdown hook can't write the same files as the checkpoint loop at once or replace a newer checkpoint with an older one.
+	 */
+	void checkpoint()
+	{
+		synchronized(sessions)
+		{
+			final CompletableFuture<ArrayList<SessionStore.Checkpoint>> taken = new CompletableFuture<>();
+			pipeline.execute(()->
+			{
+				final ArrayList<SessionStore.Checkpoint> checkpoints = new ArrayList<>(shards.length);
+				for(WebSocket ws : shards)
+				{
+					checkpoints.add(sessions.snapshot(ws));
+				}
+				taken.complete(checkpoints);
+			});
+			try
+			{
+				for(SessionStore.Checkpoint checkpoint : taken.get(10, TimeUnit.SECONDS))
+				{
+					sessions.save(checkpoint);
+				}
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void checkpointLoop()
+	{
+		final int interval = Main.configuration.getInt("sessionCheckpointInterval") > 0 ? Main.configuration.getInt("sessionCheckpointInterval") : 60;
+		//noinspection InfiniteLoopStatement
+		do
+		{
+			try
+			{
+				Thread.sleep(interval * 1000L);
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			checkpoint();
+		}
+		while(true);
+	}
+
+	private void identifyLoop()
+	{
+		//noinspection InfiniteLoopStatement
+		do
+		{
+			try
+			{
+				final WebSocket ws = identifyQueue.take();
+				coordinator.acquireIdentify(ws.shard);
+				if(ws.isConnected())
+				{
+					ws.identify();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		while(true);
+	}
+}
@@ -1,332 +1,627 @@
 package de.timmyrs.suprdiscordbot.websocket;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.sun.istack.internal.Nullable;
 import de.timmyrs.suprdiscordbot.Main;
-import de.timmyrs.suprdiscordbot.RAMCleaner;
-import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
-import de.timmyrs.suprdiscordbot.scripts.ScriptWatcher;
+import de.timmyrs.suprdiscordbot.apis.CachePolicy;
+import de.timmyrs.suprdiscordbot.apis.EntityRegistry;
+import de.timmyrs.suprdiscordbot.apis.MessageCache;
+import de.timmyrs.suprdiscordbot.apis.ResponseCache;
 import de.timmyrs.suprdiscordbot.structures.*;
 
+import javax.websocket.ContainerProvider;
 import java.net.URI;
 import java.util.Arrays;
 
+/**
+ * A single gateway session.
+ * Every shard has its own session, sequence number and heartbeat state.
+ *
+ * @see ShardManager
+ */
 public class WebSocket
 {
-	public static JsonObject afterConnectSend;
-	static int lastSeq;
-	private static String session_id = "";
+	/**
+	 * ID of the shard this session is for.
+	 */
+	public final int shard;
+	private final ShardManager manager;
+	final WebSocketHeart heart = new WebSocketHeart(this);
+	final GatewayOutbox outbox = new GatewayOutbox(this);
+	private final PresenceCoalescer presences = new PresenceCoalescer(this);
+	volatile int lastSeq;
+	volatile int appliedSeq;
+	volatile String session_id = "";
+	private volatile WebSocketEndpoint endpoint;
 
-	public WebSocket(String url)
+	WebSocket(ShardManager manager, int shard)
 	{
-		try
+		this.manager = manager;
+		this.shard = shard;
+	}
+
+	/**
+	 * Opens a new connection to the gateway, retrying until it succeeds or the session is closed.
+	 */
+	void connect()
+	{
+		if(manager.replaying)
 		{
-			Main.webSocketEndpoint = new WebSocketEndpoint(new URI(url));
-			Main.webSocketEndpoint.addMessageHandler(message->
+			return;
+		}
+		final WebSocketEndpoint endpoint = new WebSocketEndpoint(this);
+		endpoint.addMessageHandler(this::handleMessage);
+		this.endpoint = endpoint;
+		while(this.endpoint == endpoint)
+		{
+			try
 			{
-				JsonObject json = Main.jsonParser.parse(message).getAsJsonObject();
-				GatewayPayload payload = Main.gson.fromJson(json, GatewayPayload.class);
-				switch(payload.op)
+				ContainerProvider.getWebSocketContainer().connectToServer(endpoint, new URI(manager.getGatewayURL()));
+				return;
+			}
+			catch(Exception e)
+			{
+				log("Connection failed: " + e.getMessage());
+				try
 				{
-					default:
-						if(Main.debug)
-						{
-							Main.log("Socket", "Unhandled Operation: " + json);
-						}
-						break;
-					case 0:
+					Thread.sleep(5000);
+				}
+				catch(InterruptedException ex)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	void handleMessage(String message)
+	{
+		manager.pipeline.submit(this, message);
+	}
+
+	/**
+	 * @return The recorder the frames received by this session are recorded to or null if they aren't recorded.
+	 */
+	FrameRecorder recorder()
+	{
+		return manager.recorder;
+	}
+
+	/**
+	 * Handles a decoded payload on a decode thread of the {@link GatewayPipeline}.
+	 * Dispatches only update the sequence number here and are applied later by {@link #dispatch(GatewayPayload)}.
+	 *
+	 * @param payload The decoded payload
+	 * @param message The raw payload
+	 */
+	void handle(GatewayPayload payload, String message)
+	{
+		switch(payload.op)
+		{
+			default:
+				if(Main.debug)
+				{
+					log("Unhandled Operation: " + message);
+				}
+				break;
+			case 0:
+				synchronized(this)
+				{
+					if(payload.s > lastSeq || "READY".equals(payload.t))
+					{
 						lastSeq = payload.s;
-						User u;
-						Guild g;
-						Member m;
-						Presence p;
-						JsonObject data = json.get("d").getAsJsonObject();
-						switch(payload.t)
-						{
-							default:
-								if(Main.debug)
-								{
-									Main.log("Socket", "Unhandled Event " + payload.t + ": " + json.get("d").toString());
-								}
-								break;
-							case "READY":
-								JsonObject d = json.get("d").getAsJsonObject();
-								session_id = d.get("session_id").getAsString();
-								DiscordAPI.guilds.clear();
-								Main.discordAPI.user = Main.gson.fromJson(d.get("user"), User.class);
-								if(!Main.ready)
-								{
-									new ScriptWatcher();
-									new RAMCleaner();
-									Main.ready = true;
-								}
-							case "RESUMED":
-								if(afterConnectSend != null)
-								{
-									send(afterConnectSend);
-									afterConnectSend = null;
-								}
-								Main.scriptManager.fireEvent("CONNECTED");
-								break;
-							case "GUILD_CREATE":
-								g = Main.gson.fromJson(data, Guild.class);
-								for(Channel c : g.getChannels())
-								{
-									c.guild_id = g.id;
-								}
-								for(Member member : g.members)
-								{
-									member.guild_id = g.id;
-								}
-								for(Presence presence : g.presences)
-								{
-									presence.guild_id = g.id;
-									presence.user = g.getMember(presence.user.id).user;
-								}
-								for(VoiceState vs : g.voice_states)
-								{
-									vs.guild_id = g.id;
-								}
-								DiscordAPI.guilds.add(g);
-								Main.scriptManager.fireEvent("GUILD_CREATE", g);
-								break;
-							case "GUILD_DELETE":
-								g = Main.discordAPI.getGuild(data.get("id").getAsString());
-								DiscordAPI.guilds.remove(g);
-								Main.scriptManager.fireEvent("GUILD_DELETE", g);
-								break;
-							case "GUILD_MEMBER_ADD":
-								m = Main.gson.fromJson(data, Member.class);
-								m.getGuild().addMember(m);
-								Main.scriptManager.fireEvent("USER_JOIN", m);
-								break;
-							case "GUILD_MEMBER_REMOVE":
-								p = Main.gson.fromJson(data, Presence.class);
-								p.getGuild().removeMember(p.user.id);
-								p.getGuild().removePresence(p.user.id);
-								Main.scriptManager.fireEvent("USER_REMOVE", p);
-								break;
-							case "PRESENCE_UPDATE":
-								g = Main.discordAPI.getGuild(data.get("guild_id").getAsString());
-								p = Main.gson.fromJson(data, Presence.class);
-								Presence cp = g.getPresence(p.user.id);
-								m = g.getMember(p.user.id);
-								if(cp == null)
-								{
-									if(!p.status.equals("offline"))
-									{
-										p.user = m.user;
-										g.addPresence(p);
-										Main.scriptManager.fireEvent("PRESENCE_GO_ONLINE", p);
-									}
-									break;
-								}
-								if(p.status.equals("offline"))
-								{
-									Main.scriptManager.fireEvent("PRESENCE_GO_OFFLINE", g.getPresence(p.user.id));
-									g.removePresence(cp.user.id);
-									break;
-								}
-								if(p.user.username == null || p.user.discriminator == null || p.user.avatar == null)
-								{
-									p.user = cp.user;
-								}
-								else
-								{
-									cp.user = p.user;
-								}
-								if(!p.status.equals(cp.status))
-								{
-									Main.scriptManager.fireEvent("PRESENCE_UPDATE_STATUS", new Object[]{p, cp.status});
-									cp.status = p.status;
-								}
-								if(cp.game == null)
-								{
-									if(p.game != null)
-									{
-										Main.scriptManager.fireEvent("PRESENCE_UPDATE_GAME", new Object[]{p, null});
-										cp.game = p.game;
-									}
-								}
-								else
-								{
-									if(p.game == null)
-									{
-										Main.scriptManager.fireEvent("PRESENCE_UPDATE_GAME", new Object[]{p, cp.game});
-										p.game = null;
-									}
-									else if(!cp.game.name.equals(p.game.name))
-									{
-										Main.scriptManager.fireEvent("PRESENCE_UPDATE_GAME", new Object[]{p, cp.game});
-										cp.game = p.game;
-									}
-								}
-								if(!cp.user.username.equals(p.user.username) || !cp.user.username.equals(p.user.discriminator))
-								{
-									Main.scriptManager.fireEvent("PRESENCE_UPDATE_USER", new Object[]{p, cp.user});
-									p.user = cp.user;
-								}
-								g.addPresence(cp);
-								break;
-							case "GUILD_MEMBER_UPDATE":
-								m = Main.gson.fromJson(data, Member.class);
-								g = m.getGuild();
-								Member cm = m.getGuild().getMember(m.user.id);
-								if(cm.nick == null)
-								{
-									if(m.nick != null)
-									{
-										Main.scriptManager.fireEvent("MEMBER_UPDATE_NICK", new Object[]{m, null});
-										cm.nick = m.nick;
-									}
-								}
-								else
-								{
-									if(m.nick == null)
-									{
-										Main.scriptManager.fireEvent("MEMBER_UPDATE_NICK", new Object[]{m, cm.nick});
-										cm.nick = null;
-									}
-									else if(!cm.nick.equals(m.nick))
-									{
-										Main.scriptManager.fireEvent("MEMBER_UPDATE_NICK", new Object[]{m, cm.nick});
-										cm.nick = m.nick;
-									}
-								}
-								if(!Arrays.equals(cm.roles, m.roles))
-								{
-									Main.scriptManager.fireEvent("MEMBER_UPDATE_ROLES", new Object[]{m, cm.roles});
-								}
-								g.addMember(m);
-								break;
-							case "TYPING_START":
-								Channel c = Main.discordAPI.getChannel(data.get("channel_id").getAsString());
-								if(c.type == 1)
-								{
-									u = c.recipients[0];
-								}
-								else if(c.type == 3)
-								{
-									u = Main.discordAPI.getUser(data.get("user_id").getAsString());
-								}
-								else
-								{
-									u = c.getGuild().getMember(data.get("user_id").getAsString()).user;
-								}
-								Main.scriptManager.fireEvent("TYPING_START", new Object[]{c, u});
-								break;
-							case "CHANNEL_UPDATE":
-								g = Main.discordAPI.getGuild(data.get("guild_id").getAsString());
-								c = Main.gson.fromJson(data, Channel.class);
-								Channel cc = g.getChannel(c.id);
-								if(!cc.getName().equals(c.getName()))
-								{
-									cc.name = c.name;
-									Main.scriptManager.fireEvent("CHANNEL_UPDATE_NAME", new Object[]{c, cc.getName()});
-								}
-								if(c.topic != null && !cc.topic.equals(c.topic))
-								{
-									cc.topic = c.topic;
-									Main.scriptManager.fireEvent("CHANNEL_UPDATE_TOPIC", new Object[]{c, cc.topic});
-								}
-								if(cc.position != c.position)
-								{
-									cc.position = c.position;
-									Main.scriptManager.fireEvent("CHANNEL_UPDATE_POSITION", new Object[]{c, cc.position});
-								}
-								if(c.permission_overwrites != null && !Arrays.equals(cc.permission_overwrites, c.permission_overwrites))
-								{
-									cc.permission_overwrites = c.permission_overwrites;
-									Main.scriptManager.fireEvent("CHANNEL_UPDATE_OVERWRITES", new Object[]{c, cc.permission_overwrites});
-								}
-								g.addChannel(cc);
-								break;
-							case "MESSAGE_CREATE":
-								Message msg = Main.gson.fromJson(data, Message.class);
-								c = msg.getChannel();
-								if(c.isPartOfGuild())
-								{
-									g = c.getGuild();
-									c.last_message_id = msg.id;
-									g.addChannel(c);
-								}
-							case "MESSAGE_UPDATE":
-							case "MESSAGE_DELETE":
-								Main.scriptManager.fireEvent(payload.t, Main.gson.fromJson(data, Message.class));
-								break;
-						}
-						break;
-					case 7:
-						DiscordAPI.closeWebSocket("Gateway requested reconnect.");
-						DiscordAPI.getWebSocket();
-						break;
-					case 9:
-						DiscordAPI.closeWebSocket("Resume failed.");
-						DiscordAPI.getWebSocket();
-						break;
-					case 10:
-						JsonObject d = new JsonObject();
-						if(session_id.equals(""))
-						{
-							d.addProperty("token", Main.configuration.getString("botToken"));
-							JsonObject properties = new JsonObject();
-							properties.addProperty("$os", "linux");
-							properties.addProperty("$browser", "SuprDiscordBot");
-							properties.addProperty("$device", "SuprDiscordBot");
-							properties.addProperty("$referrer", "");
-							properties.addProperty("$referring_domain", "");
-							d.add("properties", properties);
-							d.addProperty("compress", false);
-							d.addProperty("large_threshold", 50);
-							d.add("shard", Main.jsonParser.parse("[0,1]").getAsJsonArray());
-							Main.discordAPI.send(2, d);
-						}
-						else
+					}
+				}
+				break;
+			case 1:
+				heart.beatNow();
+				break;
+			case 7:
+				reconnectLater("Gateway requested reconnect.");
+				break;
+			case 9:
+				if(!(payload.d instanceof JsonPrimitive && ((JsonPrimitive) payload.d).getAsBoolean()))
+				{
+					session_id = "";
+				}
+				reconnectLater("Resume failed.");
+				break;
+			case 10:
+				if(manager.replaying)
+				{
+					break;
+				}
+				if(session_id.equals(""))
+				{
+					manager.queueIdentify(this);
+				}
+				else
+				{
+					JsonObject d = new JsonObject();
+					d.addProperty("token", Main.configuration.getString("botToken"));
+					d.addProperty("session_id", session_id);
+					d.addProperty("seq", lastSeq);
+					send(6, d);
+				}
+				heart.start(((JsonObject) payload.d).get("heartbeat_interval").getAsInt());
+				break;
+			case 11:
+				heart.ack();
+				break;
+		}
+	}
+
+	/**
+	 * Applies a dispatch to the cache on the apply thread of the {@link GatewayPipeline}.
+	 *
+	 * @param payload The decoded dispatch
+	 */
+	@SuppressWarnings("fallthrough")
+	void dispatch(GatewayPayload payload)
+	{
+		appliedSeq = payload.s;
+		ResponseCache.invalidate(payload.t, payload.d);
+		if(payload.d == null)
+		{
+			// The decoder skipped the data since nobody listens to this event.
+			return;
+		}
+		User u;
+		Guild g;
+		Member m;
+		Presence p;
+		Channel c;
+		switch(payload.t)
+		{
+			default:
+				if(Main.debug)
+				{
+					log("Unhandled Event " + payload.t + ": " + payload.d);
+				}
+				break;
+			case "READY":
+				JsonObject d = (JsonObject) payload.d;
+				session_id = d.get("session_id").getAsString();
+				for(Guild guild : EntityRegistry.getGuilds())
+				{
+					if(manager.shardFor(guild.getIdLong()) == shard)
+					{
+						for(Channel channel : guild.getChannels())
 						{
-							d.addProperty("token", Main.configuration.getString("botToken"));
-							d.addProperty("session_id", session_id);
-							d.addProperty("seq", lastSeq);
-							Main.discordAPI.send(6, d);
+							MessageCache.clear(channel.getIdLong());
 						}
-						WebSocketHeart.interval = Main.jsonParser.parse(payload.d.toString()).getAsJsonObject().get("heartbeat_interval").getAsInt();
-						break;
-					case 11:
-						WebSocketHeart.gotACK = true;
-						break;
+					}
 				}
-			});
+				EntityRegistry.removeGuilds(guild->manager.shardFor(guild.getIdLong()) == shard);
+				if(shard == 0)
+				{
+					// Direct messages are only sent to shard 0.
+					for(Channel dm : EntityRegistry.getDMs())
+					{
+						MessageCache.clear(dm.getIdLong());
+					}
+				}
+				Main.discordAPI.user = Main.gson.fromJson(d.get("user"), User.class);
+			case "RESUMED":
+				manager.onReady(this);
+				outbox.open();
+				fire("CONNECTED");
+				break;
+			case "GUILD_CREATE":
+				g = (Guild) payload.d;
+				g.linkChildren();
+				EntityRegistry.addGuild(g);
+				fire("GUILD_CREATE", g);
+				if(CachePolicy.cachesAllMembers() && !g.hasAllMembers() && Guild.getMemberLoading().equals("eager"))
+				{
+					g.requestMembers();
+				}
+				break;
+			case "GUILD_MEMBERS_CHUNK":
+				final GuildMembersChunk chunk = (GuildMembersChunk) payload.d;
+				g = Main.discordAPI.getGuild(chunk.guild_id);
+				if(g != null && g.addMemberChunk(chunk))
+				{
+					fire("GUILD_MEMBERS_LOADED", g);
+				}
+				break;
+			case "GUILD_DELETE":
+				g = EntityRegistry.removeGuild(((JsonObject) payload.d).get("id").getAsLong());
+				fire("GUILD_DELETE", g);
+				break;
+			case "GUILD_MEMBER_ADD":
+				m = (Member) payload.d;
+				m.getGuild().addMember(m);
+				fire("USER_JOIN", m);
+				break;
+			case "GUILD_MEMBER_REMOVE":
+				p = (Presence) payload.d;
+				presences.drop(p);
+				p.getGuild().removeMember(p.user.getIdLong());
+				p.getGuild().removePresence(p.user.getIdLong());
+				fire("USER_REMOVE", p);
+				break;
+			case "PRESENCE_UPDATE":
+				p = (Presence) payload.d;
+				if(!presences.offer(p))
+				{
+					applyPresence(p);
+				}
+				break;
+			case "GUILD_MEMBER_UPDATE":
+				m = (Member) payload.d;
+				g = m.getGuild();
+				Member cm = g.getLoadedMember(m.user.getIdLong());
+				if(cm == null)
+				{
+					// With cacheMembers set to online, only members who are known to be online are cached, as in applyPresence.
+					if(!CachePolicy.members.equals("online") || g.getPresence(m.user.getIdLong()) != null)
+					{
+						g.addMember(m);
+					}
+					break;
+				}
+				cm.user.update(m.user);
+				if(cm.nick == null)
+				{
+					if(m.nick != null)
+					{
+						fire("MEMBER_UPDATE_NICK", new Object[]{m, null});
+						cm.nick = m.nick;
+					}
+				}
+				else
+				{
+					if(m.nick == null)
+					{
+						fire("MEMBER_UPDATE_NICK", new Object[]{m, cm.nick});
+						cm.nick = null;
+					}
+					else if(!cm.nick.equals(m.nick))
+					{
+						fire("MEMBER_UPDATE_NICK", new Object[]{m, cm.nick});
+						cm.nick = m.nick;
+					}
+				}
+				if(!Arrays.equals(cm.getRoleIDsLong(), m.getRoleIDsLong()))
+				{
+					fire("MEMBER_UPDATE_ROLES", new Object[]{m, cm.getRoleIDs()});
+				}
+				g.addMember(m);
+				break;
+			case "GUILD_ROLE_CREATE":
+			case "GUILD_ROLE_UPDATE":
+				d = (JsonObject) payload.d;
+				g = Main.discordAPI.getGuild(d.get("guild_id").getAsLong());
+				if(g != null)
+				{
+					g.addRole(Main.gson.fromJson(d.get("role"), Role.class));
+				}
+				break;
+			case "GUILD_ROLE_DELETE":
+				d = (JsonObject) payload.d;
+				g = Main.discordAPI.getGuild(d.get("guild_id").getAsLong());
+				if(g != null)
+				{
+					g.removeRole(d.get("role_id").getAsLong());
+				}
+				break;
+			case "TYPING_START":
+				JsonObject typing = (JsonObject) payload.d;
+				c = Main.discordAPI.getChannel(typing.get("channel_id").getAsString());
+				if(c.type == 1)
+				{
+					u = c.recipients[0];
+				}
+				else if(c.type == 3)
+				{
+					u = Main.discordAPI.getUser(typing.get("user_id").getAsString());
+				}
+				else
+				{
+					m = c.getGuild().getLoadedMember(typing.get("user_id").getAsString());
+					u = (m == null ? Main.discordAPI.getUser(typing.get("user_id").getAsString()) : m.user);
+				}
+				fire("TYPING_START", new Object[]{c, u});
+				break;
+			case "CHANNEL_UPDATE":
+				c = (Channel) payload.d;
+				g = c.getGuild();
+				Channel cc = g.getChannel(c.getIdLong());
+				if(!cc.getName().equals(c.getName()))
+				{
+					cc.name = c.name;
+					fire("CHANNEL_UPDATE_NAME", new Object[]{c, cc.getName()});
+				}
+				if(c.topic != null && !cc.topic.equals(c.topic))
+				{
+					cc.topic = c.topic;
+					fire("CHANNEL_UPDATE_TOPIC", new Object[]{c, cc.topic});
+				}
+				if(cc.position != c.position)
+				{
+					cc.position = c.position;
+					fire("CHANNEL_UPDATE_POSITION", new Object[]{c, cc.position});
+				}
+				if(c.permission_overwrites != null && !Arrays.equals(cc.permission_overwrites, c.permission_overwrites))
+				{
+					cc.permission_overwrites = c.permission_overwrites;
+					g.invalidatePermissions();
+					fire("CHANNEL_UPDATE_OVERWRITES", new Object[]{c, cc.permission_overwrites});
+				}
+				g.addChannel(cc);
+				break;
+			case "MESSAGE_CREATE":
+				Message msg = (Message) payload.d;
+				if(msg.webhook_id == null)
+				{
+					msg.author = EntityRegistry.internUser(msg.author);
+				}
+				c = msg.getChannel();
+				if(c.isPartOfGuild())
+				{
+					c.last_message_id = msg.getId();
+				}
+				MessageCache.add(msg);
+				fire(payload.t, msg);
+				break;
+			case "MESSAGE_UPDATE":
+				msg = (Message) payload.d;
+				msg.setPrevious(MessageCache.update(msg));
+				fire(payload.t, msg);
+				break;
+			case "MESSAGE_DELETE":
+				msg = (Message) payload.d;
+				msg.setPrevious(MessageCache.remove(msg.getChannelIdLong(), msg.getIdLong()));
+				fire(payload.t, msg);
+				break;
 		}
-		catch(Exception e)
+	}
+
+	/**
+	 * Applies a presence update to the cache and fires the events for what changed.
+	 *
+	 * @param p The presence update
+	 */
+	void applyPresence(Presence p)
+	{
+		final Guild g = p.getGuild();
+		if(g == null)
+		{
+			return;
+		}
+		if(CachePolicy.members.equals("online"))
+		{
+			if(p.status.equals("offline"))
+			{
+				g.removeMember(p.user.getIdLong());
+			}
+			else if(g.getLoadedMember(p.user.getIdLong()) == null)
+			{
+				final Member m = p.toMember();
+				if(m != null)
+				{
+					g.addMember(m);
+				}
+			}
+		}
+		if(!CachePolicy.presences)
+		{
+			return;
+		}
+		final Presence cp = g.getPresence(p.user.getIdLong());
+		if(cp == null)
+		{
+			if(!p.status.equals("offline"))
+			{
+				p.user = EntityRegistry.internUser(p.user);
+				g.addPresence(p);
+				fire("PRESENCE_GO_ONLINE", p);
+			}
+			return;
+		}
+		if(p.status.equals("offline"))
+		{
+			fire("PRESENCE_GO_OFFLINE", cp);
+			g.removePresence(cp.user.getIdLong());
+			return;
+		}
+		final User previousUser = cp.user.update(p.user);
+		p.user = cp.user;
+		if(!p.status.equals(cp.status))
+		{
+			fire("PRESENCE_UPDATE_STATUS", new Object[]{p, cp.status});
+			cp.status = p.status;
+		}
+		if(cp.game == null)
+		{
+			if(p.game != null)
+			{
+				fire("PRESENCE_UPDATE_GAME", new Object[]{p, null});
+				cp.game = p.game;
+			}
+		}
+		else
+		{
+			if(p.game == null)
+			{
+				fire("PRESENCE_UPDATE_GAME", new Object[]{p, cp.game});
+				cp.game = null;
+			}
+			else if(!cp.game.name.equals(p.game.name))
+			{
+				fire("PRESENCE_UPDATE_GAME", new Object[]{p, cp.game});
+				cp.game = p.game;
+			}
+		}
+		if(previousUser != null && previousUser.username != null && (!previousUser.username.equals(p.user.username) || !previousUser.discriminator.equals(p.user.discriminator)))
+		{
+			fire("PRESENCE_UPDATE_USER", new Object[]{p, previousUser});
+		}
+	}
+
+	private void fire(String event)
+	{
+		fire(event, null);
+	}
+
+	private void fire(String event, Object data)
+	{
+		if(Main.scriptManager.isSubscribed(event))
 		{
-			e.printStackTrace();
+			manager.pipeline.fanOut(event, data);
 		}
 	}
 
+	/**
+	 * Continues a session from before a restart, so it is resumed instead of identified.
+	 *
+	 * @param session_id ID of the session
+	 * @param seq        Sequence number of the last applied dispatch
+	 */
+	void restore(String session_id, int seq)
+	{
+		this.session_id = session_id;
+		lastSeq = seq;
+		appliedSeq = seq;
+	}
+
+	/**
+	 * Sends the IDENTIFY payload.
+	 * Called by the {@link ShardManager} once this shard may identify.
+	 */
+	void identify()
+	{
+		JsonObject d = new JsonObject();
+		d.addProperty("token", Main.configuration.getString("botToken"));
+		JsonObject properties = new JsonObject();
+		properties.addProperty("$os", "linux");
+		properties.addProperty("$browser", "SuprDiscordBot");
+		properties.addProperty("$device", "SuprDiscordBot");
+		properties.addProperty("$referrer", "");
+		properties.addProperty("$referring_domain", "");
+		d.add("properties", properties);
+		d.addProperty("compress", false);
+		d.addProperty("large_threshold", 50);
+		JsonArray shard = new JsonArray();
+		shard.add(new JsonPrimitive(this.shard));
+		shard.add(new JsonPrimitive(manager.total));
+		d.add("shard", shard);
+		send(2, d);
+	}
+
+	/**
+	 * @return Round trip time of this session's last acknowledged heartbeat in milliseconds or -1 if none has been acknowledged yet.
+	 */
+	public long getLatency()
+	{
+		return heart.getLatency();
+	}
+
+	/**
+	 * @return Whether this session currently has an open connection.
+	 */
+	public boolean isConnected()
+	{
+		final WebSocketEndpoint endpoint = this.endpoint;
+		return endpoint != null && endpoint.userSession != null && endpoint.userSession.isOpen();
+	}
+
+	void send(int op, JsonElement d)
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("op", op);
+		json.add("d", d);
+		send(json);
+	}
+
+	/**
+	 * Sends a payload through this session as soon as it is ready and the rate limit allows.
+	 *
+	 * @param json Payload to be sent
+	 * @see GatewayOutbox
+	 */
 	public void send(JsonObject json)
 	{
-		Main.webSocketEndpoint.send(json.toString());
+		outbox.send(json);
+	}
+
+	void write(String msg)
+	{
+		final WebSocketEndpoint endpoint = this.endpoint;
+		if(endpoint != null)
+		{
+			endpoint.send(msg);
+		}
+	}
+
+	/**
+	 * Closes the current connection and opens a new one, resuming the session if possible.
+	 *
+	 * @param reason Reason to be logged
+	 */
+	void reconnect(String reason)
+	{
+		close(reason);
+		connect();
+	}
+
+	/**
+	 * Reconnects on a new thread, since reconnecting blocks until the new connection is open, which mustn't hold up the pipeline or the other sessions' heartbeats.
+	 *
+	 * @param reason Reason to be logged
+	 */
+	void reconnectLater(String reason)
+	{
+		new Thread(()->reconnect(reason), "WebSocket").start();
 	}
 
 	public void close(@Nullable String reason)
 	{
-		try
+		final WebSocketEndpoint endpoint = this.endpoint;
+		this.endpoint = null;
+		heart.stop();
+		outbox.close();
+		if(reason != null)
 		{
-			if(reason != null)
-			{
-				Main.log("Socket", "Manually closing - " + reason);
-			}
-			if(Main.webSocketEndpoint.userSession != null && Main.webSocketEndpoint.userSession.isOpen())
+			log("Manually closing - " + reason);
+		}
+		if(endpoint != null && endpoint.userSession != null && endpoint.userSession.isOpen())
+		{
+			try
 			{
-				Main.webSocketEndpoint.userSession.close();
+				endpoint.userSession.close();
 			}
-			if(reason == null)
+			catch(Exception e)
 			{
-				Main.webSocketEndpoint = null;
+				e.printStackTrace();
 			}
 		}
-		catch(Exception e)
+	}
+
+	/**
+	 * Called by the endpoint once its connection has been closed.
+	 * Connections which were closed on purpose have already been replaced and are ignored.
+	 *
+	 * @param endpoint The endpoint which was closed
+	 */
+	void onClose(WebSocketEndpoint endpoint)
+	{
+		Main.scriptManager.fireEvent("DISCONNECTED");
+		if(this.endpoint == endpoint)
 		{
-			e.printStackTrace();
+			this.endpoint = null;
+			heart.stop();
+			outbox.close();
+			connect();
 		}
 	}
+
+	void log(String msg)
+	{
+		Main.log("Socket", (manager.total > 1 ? "[Shard " + shard + "] " : "") + msg);
+	}
 }
@@ -3,10 +3,9 @@ package de.timmyrs.suprdiscordbot.websocket;
 import com.sun.istack.internal.NotNull;
 import com.sun.istack.internal.Nullable;
 import de.timmyrs.suprdiscordbot.Main;
-import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
 
 import javax.websocket.*;
-import java.net.URI;
+import java.nio.ByteBuffer;
 
 @SuppressWarnings("unused")
 @ClientEndpoint
@@ -15,19 +14,18 @@ public class WebSocketEndpoint
 	@Nullable
 	Session userSession;
 	@NotNull
+	private final WebSocket socket;
+	@NotNull
 	private MessageHandler messageHandler;
+	@Nullable
+	private ZlibStream zlibStream;
 
-	WebSocketEndpoint(@NotNull URI endpointURI)
+	WebSocketEndpoint(@NotNull WebSocket socket)
 	{
-		try
-		{
-			WebSocketContainer container = ContainerProvider.getWebSocketContainer();
-			container.connectToServer(this, endpointURI);
-		}
-		catch(Exception e)
+		this.socket = socket;
+		if(Main.zlibStream)
 		{
-			DiscordAPI.closeWebSocket("Connection failed.");
-			DiscordAPI.getWebSocket();
+			zlibStream = new ZlibStream();
 		}
 	}
 
@@ -35,8 +33,13 @@ public class WebSocketEndpoint
 	@Nullable
 	public void onOpen(Session userSession)
 	{
-		Main.log("Socket", "WebSocket opened.");
+		socket.log("WebSocket opened.");
 		this.userSession = userSession;
+		final FrameRecorder recorder = socket.recorder();
+		if(recorder != null)
+		{
+			recorder.recordOpened(socket.shard);
+		}
 	}
 
 	@OnError
@@ -50,28 +53,68 @@ public class WebSocketEndpoint
 	@Nullable
 	public void onClose(Session userSession, CloseReason reason)
 	{
-		Main.log("Socket", "WebSocket closed: " + reason.getReasonPhrase() + " (" + reason.getCloseCode().getCode() + ")");
+		socket.log("WebSocket closed: " + reason.getReasonPhrase() + " (" + reason.getCloseCode().getCode() + ")");
 		this.userSession = null;
-		Main.scriptManager.fireEvent("DISCONNECTED");
-		DiscordAPI.closeWebSocket(null);
-		DiscordAPI.getWebSocket();
+		if(this.zlibStream != null)
+		{
+			this.zlibStream.end();
+		}
+		socket.onClose(this);
 	}
 
 	@OnMessage
 	@Nullable
 	public void onMessage(@Nullable String msg)
+	{
+		final FrameRecorder recorder = socket.recorder();
+		if(recorder != null && msg != null)
+		{
+			recorder.recordText(socket.shard, msg);
+		}
+		handleMessage(msg);
+	}
+
+	private void handleMessage(@Nullable String msg)
 	{
 		if(this.messageHandler != null)
 		{
 			if(Main.debug)
 			{
-				Main.log("Socket", "> " + msg);
+				socket.log("> " + msg);
 			}
 			this.messageHandler.handleMessage(msg);
 		}
 		else if(msg != null)
 		{
-			Main.log("Socket", "Unhandled > " + msg);
+			socket.log("Unhandled > " + msg);
+		}
+	}
+
+	@OnMessage
+	@Nullable
+	public void onMessage(ByteBuffer frame)
+	{
+		if(this.zlibStream == null)
+		{
+			socket.log("Unexpected binary frame.");
+			return;
+		}
+		final FrameRecorder recorder = socket.recorder();
+		if(recorder != null)
+		{
+			recorder.recordBinary(socket.shard, frame);
+		}
+		try
+		{
+			final String msg = this.zlibStream.decode(frame);
+			if(msg != null)
+			{
+				handleMessage(msg);
+			}
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
 		}
 	}
 
@@ -85,7 +128,7 @@ public class WebSocketEndpoint
 	{
 		if(Main.debug)
 		{
-			Main.log("Socket", "< " + msg);
+			socket.log("< " + msg);
 		}
 		if(this.userSession != null && this.userSession.isOpen())
 		{
@@ -1,50 +1,135 @@
 package de.timmyrs.suprdiscordbot.websocket;
 
-import de.timmyrs.suprdiscordbot.Main;
-import de.timmyrs.suprdiscordbot.apis.DiscordAPI;
+import com.google.gson.JsonPrimitive;
 
-public class WebSocketHeart extends Thread
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends the heartbeats of a single session and measures how long Discord takes to acknowledge them.
+ * The heartbeats of all sessions are scheduled on one shared thread, which is only busy while a heartbeat is due.
+ */
+public class WebSocketHeart
 {
-	static boolean gotACK = true;
-	static int interval;
-	private static long lastHeartbeat = 0;
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r->new Thread(r, "WebSocketHeart"));
+	/**
+	 * Upper bounds of the round trip time histogram buckets in milliseconds.
+	 */
+	private static final long[] bounds = new long[]{25, 50, 100, 200, 400, 800, 1600};
+	private static final AtomicLongArray histogram = new AtomicLongArray(bounds.length + 1);
+	private static final AtomicLong sent = new AtomicLong();
+	private static final AtomicLong missed = new AtomicLong();
+	private final WebSocket ws;
+	private ScheduledFuture<?> task;
+	private volatile boolean gotACK = true;
+	private volatile long sentAt;
+	private volatile long latency = -1;
 
-	public WebSocketHeart()
+	WebSocketHeart(WebSocket ws)
 	{
-		new Thread(this, "WebSocketHeart").start();
+		this.ws = ws;
 	}
 
-	public void run()
+	/**
+	 * Starts beating in the given interval.
+	 * The first heartbeat is sent after a random fraction of the interval, so sessions connecting together don't beat together.
+	 *
+	 * @param interval Heartbeat interval in milliseconds as sent in the HELLO payload
+	 */
+	synchronized void start(int interval)
 	{
-		//noinspection InfiniteLoopStatement
-		do
+		stop();
+		gotACK = true;
+		task = scheduler.scheduleAtFixedRate(this::beat, (long) (interval * Math.random()), interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops beating until the next {@link #start(int)}.
+	 */
+	synchronized void stop()
+	{
+		if(task != null)
 		{
-			if(interval != 0)
-			{
-				if(lastHeartbeat < System.currentTimeMillis() - interval)
-				{
-					if(gotACK)
-					{
-						gotACK = false;
-						Main.discordAPI.send(1, WebSocket.lastSeq);
-					}
-					else
-					{
-						interval = 0;
-						DiscordAPI.closeWebSocket("Discord did not answer heartbeat.");
-					}
-					lastHeartbeat = System.currentTimeMillis();
-				}
-			}
-			try
-			{
-				Thread.sleep(200);
-			}
-			catch(InterruptedException e)
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/**
+	 * Sends a heartbeat right away, e.g. because the gateway asked for one.
+	 */
+	void beatNow()
+	{
+		scheduler.execute(this::send);
+	}
+
+	/**
+	 * Called once the gateway acknowledged a heartbeat.
+	 */
+	void ack()
+	{
+		if(!gotACK)
+		{
+			final long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+			int bucket = 0;
+			while(bucket < bounds.length && rtt > bounds[bucket])
 			{
-				e.printStackTrace();
+				bucket++;
 			}
+			histogram.incrementAndGet(bucket);
+			latency = rtt;
+		}
+		gotACK = true;
+	}
+
+	/**
+	 * @return Round trip time of the last acknowledged heartbeat in milliseconds or -1 if none has been acknowledged yet.
+	 */
+	long getLatency()
+	{
+		return latency;
+	}
+
+	/**
+	 * Adds the heartbeat counters and the round trip time histogram of all sessions to the given metrics.
+	 *
+	 * @param metrics Metrics to be added to
+	 */
+	static void addMetrics(Map<String, Long> metrics)
+	{
+		metrics.put("gateway.heartbeat.sent", sent.get());
+		metrics.put("gateway.heartbeat.missed", missed.get());
+		for(int i = 0; i < bounds.length; i++)
+		{
+			metrics.put("gateway.heartbeat.rtt.le" + bounds[i], histogram.get(i));
 		}
-		while(true);
+		metrics.put("gateway.heartbeat.rtt.inf", histogram.get(bounds.length));
+	}
+
+	private void beat()
+	{
+		if(gotACK)
+		{
+			send();
+		}
+		else
+		{
+			missed.incrementAndGet();
+			stop();
+			ws.reconnectLater("Discord did not answer heartbeat.");
+		}
+	}
+
+	private void send()
+	{
+		gotACK = false;
+		sentAt = System.nanoTime();
+		sent.incrementAndGet();
+		ws.send(1, new JsonPrimitive(ws.lastSeq));
 	}
 }
@@ -0,0 +1,79 @@
+package de.timmyrs.suprdiscordbot.websocket;
+
+import com.sun.istack.internal.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder for the gateway's zlib-stream transport compression.
+ * <p>
+ * All binary frames of one connection belong to the same zlib context, so one instance has to be used per connection.
+ * A payload is complete once the received data ends with the Z_SYNC_FLUSH suffix (00 00 FF FF).
+ */
+class ZlibStream
+{
+	private final Inflater inflater = new Inflater();
+	private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+	private final byte[] buffer = new byte[8192];
+
+	/**
+	 * @param frame Binary frame received from the gateway
+	 * @return The inflated payload or null if the payload is not complete yet.
+	 * @throws DataFormatException If the frame is not valid zlib data.
+	 */
+	@Nullable
+	synchronized String decode(ByteBuffer frame) throws DataFormatException
+	{
+		final byte[] data;
+		final int offset;
+		final int length = frame.remaining();
+		if(frame.hasArray())
+		{
+			data = frame.array();
+			offset = frame.arrayOffset() + frame.position();
+		}
+		else
+		{
+			data = new byte[length];
+			offset = 0;
+			frame.get(data);
+		}
+		if(!endsWithSuffix(data, offset, length))
+		{
+			compressed.write(data, offset, length);
+			return null;
+		}
+		if(compressed.size() == 0)
+		{
+			inflater.setInput(data, offset, length);
+		}
+		else
+		{
+			compressed.write(data, offset, length);
+			inflater.setInput(compressed.toByteArray());
+			compressed.reset();
+		}
+		decompressed.reset();
+		int inflated;
+		while((inflated = inflater.inflate(buffer)) > 0 || !(inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+		{
+			decompressed.write(buffer, 0, inflated);
+		}
+		return new String(decompressed.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	synchronized void end()
+	{
+		inflater.end();
+	}
+
+	private static boolean endsWithSuffix(byte[] data, int offset, int length)
+	{
+		return length >= 4 && data[offset + length - 4] == 0x00 && data[offset + length - 3] == 0x00 && data[offset + length - 2] == (byte) 0xFF && data[offset + length - 1] == (byte) 0xFF;
+	}
+}